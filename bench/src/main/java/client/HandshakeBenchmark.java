@@ -0,0 +1,64 @@
+package client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.LoopbackServer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete handshake of a Session with a ClientThread over loopback:
+ * connect, key request, key receipt and close
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    @Param({"binary", "text"})
+    public String protocol;
+
+    @Param({"256", "0"})
+    public int keyPool;
+
+    /** the group a binary session negotiates, text sessions always use modp1024 */
+    @Param({"x25519", "modp1024"})
+    public String group;
+
+    private LoopbackServer server;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("dhke.protocol", protocol);
+        System.setProperty("dhke.groups", group);
+        server = new LoopbackServer(keyPool);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public Session handshake() {
+        Session session = new Session("localhost", server.port());
+        session.connect();
+        session.keyRequest("bench-client");
+        session.receiveKeys();
+        session.close();
+        return session;
+    }
+}
@@ -0,0 +1,68 @@
+package crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random bytes for a key from the entropy pool against one shared
+ * SecureRandom and the original new Random() per key, run with 1, 8 and
+ * 64 threads by the nested classes to show throughput by thread count
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class EntropyBenchmark {
+    private final SecureRandom shared = new SecureRandom();
+
+    @Benchmark
+    public byte[] pool() {
+        byte[] bytes = new byte[32];
+        Entropy.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] sharedSecureRandom() {
+        byte[] bytes = new byte[32];
+        shared.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public long newRandom() {
+        return new Random().nextLong();
+    }
+
+    @Benchmark
+    public BigInteger privateKey() {
+        return Group.MODP_1024.generatePrivateKey();
+    }
+
+    @Threads(1)
+    public static class OneThread extends EntropyBenchmark {
+    }
+
+    @Threads(8)
+    public static class EightThreads extends EntropyBenchmark {
+    }
+
+    @Threads(64)
+    public static class SixtyFourThreads extends EntropyBenchmark {
+    }
+}
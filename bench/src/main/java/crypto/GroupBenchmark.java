@@ -0,0 +1,51 @@
+package crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work of one side of a key exchange in every group:
+ * a private key, its public key and the shared secret
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupBenchmark {
+    @Param({"x25519", "ffdhe2048", "modp1024", "ffdhe3072", "ffdhe4096"})
+    public String name;
+
+    private Group group;
+    private BigInteger peerKey;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        group = Group.parse(name).get(0);
+        peerKey = group.publicKey(group.generatePrivateKey());
+    }
+
+    @Benchmark
+    public BigInteger publicKey() {
+        return group.publicKey(group.generatePrivateKey());
+    }
+
+    @Benchmark
+    public BigInteger sharedSecret() {
+        return group.sharedSecret(peerKey, group.generatePrivateKey());
+    }
+}
@@ -0,0 +1,72 @@
+package crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared secret exponentiation with either engine of
+ * Montgomery.modPow, run with -prof gc for the allocation per call
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModPowBenchmark {
+    @Param({"1024", "2048"})
+    public int modulusBits;
+
+    @Param({"160", "full"})
+    public String exponentBits;
+
+    private BigInteger modulus;
+    private BigInteger base;
+    private BigInteger exponent;
+    private Montgomery engine;
+    private long[] baseLimbs;
+    private long[] exponentLimbs;
+    private long[] result;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        modulus = BigInteger.probablePrime(modulusBits, random);
+        base = new BigInteger(modulusBits - 1, random);
+        exponent = new BigInteger("full".equals(exponentBits) ? modulusBits : Integer.parseInt(exponentBits), random);
+        engine = Montgomery.of(modulus);
+        baseLimbs = Montgomery.toLimbs(base, engine.limbs());
+        exponentLimbs = Montgomery.toLimbs(exponent, engine.limbs());
+        result = new long[engine.limbs()];
+    }
+
+    @Benchmark
+    public BigInteger bigInteger() {
+        return base.modPow(exponent, modulus);
+    }
+
+    @Benchmark
+    public BigInteger montgomery() {
+        return engine.modPow(base, exponent);
+    }
+
+    @Benchmark
+    public long[] montgomeryLimbs() {
+        engine.modPow(baseLimbs, exponentLimbs, result);
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One way throughput of the encrypted data channel over loopback
+ * Every operation sends 1 MiB of messages of the given size and flushes,
+ * a second thread receives and opens the records, so the score in ops/s
+ * is MiB/s of application data
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataChannelBenchmark {
+    private static final int VOLUME = 1 << 20;
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    private ServerSocketChannel listener;
+    private SocketChannel clientSocket;
+    private SocketChannel serverSocket;
+    private DataChannel sender;
+    private Thread sink;
+    private ByteBuffer message;
+    private int messages;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        clientSocket = SocketChannel.open(listener.getLocalAddress());
+        serverSocket = listener.accept();
+        clientSocket.socket().setTcpNoDelay(true);
+        Random random = new Random(1);
+        BigInteger sessionKey = new BigInteger(2048, random);
+        byte[] clientNonce = new byte[DataChannel.NONCE_LENGTH];
+        byte[] serverNonce = new byte[DataChannel.NONCE_LENGTH];
+        random.nextBytes(clientNonce);
+        random.nextBytes(serverNonce);
+        sender = new DataChannel(clientSocket, clientSocket, sessionKey, clientNonce, serverNonce, true);
+        DataChannel receiver = new DataChannel(serverSocket, serverSocket, sessionKey, clientNonce, serverNonce, false);
+        sink = new Thread(() -> {
+            try {
+                while (receiver.receive() != null) {
+                    // drop the message
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "data-channel-sink");
+        sink.start();
+        message = ByteBuffer.allocateDirect(messageSize);
+        messages = VOLUME / messageSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        sender.close();
+        sink.join();
+        clientSocket.close();
+        serverSocket.close();
+        listener.close();
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        for (int i = 0; i < messages; i++) {
+            message.clear();
+            sender.send(message);
+        }
+        sender.flush();
+    }
+}
@@ -0,0 +1,82 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and parsing of a key exchange message
+ * in the binary frames and in the older writeUTF text
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBenchmark {
+    private static final String ID = "client-1";
+    private static final int WIDTH = 128;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final ByteBuffer encoded = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final Frame frame = new Frame();
+    private BigInteger key;
+    private byte[] text;
+
+    @Setup
+    public void setup() throws IOException {
+        key = new BigInteger(WIDTH * 8, new Random(1));
+        Wire.putKeyFrame(encoded, Wire.KEY_REQUEST, ID, key, WIDTH);
+        encoded.flip();
+        text = encodeText();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        buffer.clear();
+        Wire.putKeyFrame(buffer, Wire.KEY_REQUEST, ID, key, WIDTH);
+        return buffer;
+    }
+
+    @Benchmark
+    public BigInteger decodeBinary() throws IOException {
+        encoded.position(0);
+        Wire.getFrame(encoded, frame);
+        return frame.key();
+    }
+
+    @Benchmark
+    public byte[] encodeText() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        buf.append(ID);
+        buf.append(' ');
+        buf.append(key.toString());
+        buf.append('\n');
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DataOutputStream(out).writeUTF(buf.toString());
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public BigInteger decodeText() throws IOException {
+        String[] info = new DataInputStream(new ByteArrayInputStream(text)).readUTF().split("\\s+");
+        return new BigInteger(info[1]);
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import crypto.Montgomery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The calculations of the server side of a key exchange
+ * The plain modPow variants are the baseline for the engines in crypto
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyExchangeBenchmark {
+    private BigInteger privateKey;
+    private BigInteger clientKey;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        privateKey = KeyExchange.calcPrivateSessionKey().abs();
+        clientKey = KeyExchange.G.modPow(KeyExchange.calcPrivateSessionKey().abs(), KeyExchange.P);
+    }
+
+    @Benchmark
+    public BigInteger calcPrivateSessionKey() {
+        return KeyExchange.calcPrivateSessionKey();
+    }
+
+    @Benchmark
+    public BigInteger calcPublicKey() {
+        return KeyExchange.calcPublicKey(privateKey);
+    }
+
+    @Benchmark
+    public BigInteger calcPublicKeyModPow() {
+        return KeyExchange.G.modPow(privateKey, KeyExchange.P);
+    }
+
+    @Benchmark
+    public BigInteger calcSessionKey() {
+        return KeyExchange.calcSessionKey(clientKey, privateKey);
+    }
+
+    @Benchmark
+    public BigInteger calcSessionKeyMontgomery() {
+        return Montgomery.of(KeyExchange.P).modPow(clientKey, privateKey);
+    }
+}
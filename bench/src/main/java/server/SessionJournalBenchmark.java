@@ -0,0 +1,79 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The restart of a server with a journal of resumable sessions,
+ * the replay of every record into an empty cache
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SessionJournalBenchmark {
+    private static final int SEGMENT_SIZE = 64 << 20;
+    @Param({"1000000"})
+    private int sessions;
+    private Path directory;
+    private SessionCache cache;
+
+    @Setup(Level.Trial)
+    public void writeJournal() throws IOException {
+        directory = Files.createTempDirectory("session-journal");
+        SessionCache writer = new SessionCache(sessions, 3600);
+        // compaction would rewrite the segments while they are replayed
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, Integer.MAX_VALUE, writer);
+        journal.open();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] ticket = new byte[SessionCache.TICKET_LENGTH];
+        byte[] key = new byte[SessionCache.KEY_LENGTH];
+        long expiresAt = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+        for (int i = 0; i < sessions; i++) {
+            random.nextBytes(ticket);
+            random.nextBytes(key);
+            journal.append(ticket, random.nextLong(), key, expiresAt);
+        }
+        journal.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyCache() {
+        cache = new SessionCache(sessions, 3600);
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        return new SessionJournal(directory, SEGMENT_SIZE, Integer.MAX_VALUE, cache).replay().size();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteJournal() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * A non blocking client for Diffie-Hellman-Key-Exchange servers
+ * Every handshake is a small state machine driven by the completion handlers
+ * of an AsynchronousSocketChannel, so the few threads of the channel group
+ * run thousands of handshakes to many servers at once and the caller never
+ * blocks. A handshake returns a CompletableFuture of the session key that
+ * fails with a TimeoutException past its timeout, with a BusyException when
+ * the server sheds the connection, and closes its connection when it is
+ * cancelled. Only the binary protocol is spoken, the groups offered are
+ * listed by dhke.groups as for Session.
+ */
+package client;
+
+import crypto.Group;
+import log.Log;
+import protocol.Frame;
+import protocol.Wire;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class AsyncClient implements AutoCloseable {
+    private static final Log log = Log.get(AsyncClient.class);
+    private final String clientId;
+    private final AsynchronousChannelGroup channelGroup;
+    private final List<Group> groups;
+    private final byte[] offered;
+    private final boolean negotiate;
+    private final long timeoutMillis;
+
+    /**
+     * The server closed the connection without a key because it is busy
+     */
+    public static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int retryAfter;
+
+        BusyException(String serverId, int retryAfter) {
+            super("Server " + serverId + " busy, retry after " + retryAfter + " ms");
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return milliseconds the server asked to wait before connecting again
+         */
+        public int retryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * Creates a client configured by the system properties
+     * dhke.async.threads (default 1) threads run the handshakes and
+     * dhke.async.timeout (default 10000 ms) limits a handshake
+     * @param clientId the id sent to the servers
+     * @throws IOException if the channel group cannot be created
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    public AsyncClient(String clientId) throws IOException {
+        this(clientId, Integer.getInteger("dhke.async.threads", 1), Long.getLong("dhke.async.timeout", 10000));
+    }
+
+    /**
+     * @param clientId the id sent to the servers
+     * @param threads the number of threads running the handshakes
+     * @param timeoutMillis the default limit of a handshake, 0 for no limit
+     * @throws IOException if the channel group cannot be created
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    public AsyncClient(String clientId, int threads, long timeoutMillis) throws IOException {
+        this.clientId = clientId;
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger count = new AtomicInteger();
+        this.channelGroup = AsynchronousChannelGroup.withFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "async-client-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.groups = Group.parse(System.getProperty("dhke.groups"));
+        this.offered = new byte[groups.size()];
+        for (int i = 0; i < offered.length; i++) {
+            offered[i] = groups.get(i).id();
+        }
+        this.negotiate = !(groups.size() == 1 && groups.get(0) == Group.MODP_1024);
+    }
+
+    /**
+     * Starts a key exchange with the default timeout
+     * @param server the resolved address of the server
+     * @return the session key once the exchange completed
+     */
+    public CompletableFuture<SessionKey> handshake(InetSocketAddress server) {
+        return handshake(server, timeoutMillis);
+    }
+
+    /**
+     * Starts a key exchange, the connection is closed once it completed,
+     * failed, timed out or was cancelled
+     * @param server the resolved address of the server
+     * @param timeoutMillis the limit of the whole exchange, connect included, 0 for no limit
+     * @return the session key once the exchange completed
+     */
+    public CompletableFuture<SessionKey> handshake(InetSocketAddress server, long timeoutMillis) {
+        CompletableFuture<SessionKey> result = new CompletableFuture<>();
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(channelGroup);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        if (timeoutMillis > 0)
+            result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        // a timeout or a cancel closes the channel, the pending operation then fails unheard
+        result.whenComplete((key, failure) -> close(channel));
+        new Exchange(channel, result).start(server);
+        return result;
+    }
+
+    /**
+     * Stops the threads, handshakes still running fail
+     */
+    @Override
+    public void close() {
+        try {
+            channelGroup.shutdownNow();
+        } catch (IOException e) {
+            log.warn("Unable to close the channel group: {}", e.getMessage());
+        }
+    }
+
+    private static void close(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the connection");
+        }
+    }
+
+    /**
+     * The state of one key exchange, each completed read or write
+     * starts the next step on the thread that completed it
+     */
+    private final class Exchange implements CompletionHandler<Integer, Void> {
+        private final AsynchronousSocketChannel channel;
+        private final CompletableFuture<SessionKey> result;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+        private final Frame frame = new Frame();
+        private Group group;
+        private BigInteger privateKey;
+        private boolean writing;
+
+        Exchange(AsynchronousSocketChannel channel, CompletableFuture<SessionKey> result) {
+            this.channel = channel;
+            this.result = result;
+            this.group = negotiate ? groups.get(0) : Group.MODP_1024;
+        }
+
+        void start(InetSocketAddress server) {
+            channel.connect(server, null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void ignored, Void attachment) {
+                    /* Documentation */
+                    log.debug("Connected to {}", server);
+                    sendKey();
+                }
+
+                @Override
+                public void failed(Throwable failure, Void attachment) {
+                    result.completeExceptionally(failure);
+                }
+            });
+        }
+
+        /**
+         * Sends a fresh public key in the current group
+         */
+        private void sendKey() {
+            if (result.isDone())
+                return;
+            privateKey = group.generatePrivateKey();
+            BigInteger publicKey = group.publicKey(privateKey);
+            buffer.clear();
+            if (negotiate)
+                Wire.putGroupRequest(buffer, group.id(), offered, clientId, publicKey, group.keyWidth());
+            else
+                Wire.putKeyFrame(buffer, Wire.TICKET_REQUEST, clientId, publicKey, group.keyWidth());
+            buffer.flip();
+            writing = true;
+            channel.write(buffer, null, this);
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (result.isDone())
+                return;
+            if (writing) {
+                if (buffer.hasRemaining()) {
+                    channel.write(buffer, null, this);
+                    return;
+                }
+                writing = false;
+                buffer.clear();
+                channel.read(buffer, null, this);
+                return;
+            }
+            if (count < 0) {
+                result.completeExceptionally(new IOException("Connection closed by the server"));
+                return;
+            }
+            try {
+                buffer.flip();
+                if (Wire.frameLength(buffer) < 0) {
+                    buffer.compact();
+                    channel.read(buffer, null, this);
+                    return;
+                }
+                Wire.getFrame(buffer, frame);
+                onFrame();
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void failed(Throwable failure, Void attachment) {
+            result.completeExceptionally(failure);
+        }
+
+        /**
+         * Handles the reply of the server
+         * @throws IOException if the reply is not a valid key
+         */
+        private void onFrame() throws IOException {
+            if (frame.type() == Wire.BUSY)
+                throw new BusyException(frame.id(), frame.lifetime());
+            if (frame.type() == Wire.GROUP_RETRY) {
+                Group chosen = Group.byId(frame.group());
+                if (chosen == null || chosen == group || !groups.contains(chosen))
+                    throw new IOException("No common group with the server");
+                group = chosen;
+                /* Documentation */
+                log.debug("Server asked for a key in {}", group);
+                sendKey();
+                return;
+            }
+            boolean expected = negotiate
+                    ? frame.type() == Wire.GROUP_RESPONSE && frame.group() == group.id()
+                    : frame.type() == Wire.TICKET_RESPONSE || frame.type() == Wire.KEY_RESPONSE;
+            if (!expected)
+                throw new IOException("Invalid key received");
+            BigInteger key;
+            try {
+                key = group.sharedSecret(frame.key(), privateKey);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid key received");
+            }
+            byte[] ticket = frame.ticket() != null && frame.ticket().length > 0 ? frame.ticket() : null;
+            /* Documentation */
+            log.debug("Session key Established with: {} in {}", frame.id(), group);
+            result.complete(new SessionKey(frame.id(), group, key, ticket, frame.lifetime()));
+        }
+    }
+}
@@ -5,13 +5,16 @@
  */
 package client;
 
+import crypto.Group;
+import protocol.DataChannel;
+
 import java.io.Console;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 public final class Client {
     private static String id;
-    private static final BigInteger p;
-    private static final BigInteger g;
     private static BigInteger privateT;
     private static BigInteger publicT;
     private static Session session;
@@ -21,13 +24,13 @@ public final class Client {
     }
 
     /**
-     * Static Variables for the Client Class
-     * p - The prime no
-     * g - The generator for prime
+     * Builds the tables of the first offered group and of the
+     * group without negotiation before any session is timed
      */
     static {
-        p = new BigInteger("B10B8F96A080E01DDE92DE5EAE5D54EC52C99FBCFB06A3C69A6A9DCA52D23B616073E28675A23D189838EF1E2EE652C013ECB4AEA906112324975C3CD49B83BFACCBDD7D90C4BD7098488E9C219A73724EFFD6FAE5644738FAA31A4FF55BCCC0A151AF5F0DC8B4BD45BF37DF365C1A65E68CFDA76D4DA708DF1FB2BC2E4A4371", 16);
-        g = new BigInteger("A4D1CBD5C3FD34126765A442EFB99905F8104DD258AC507FD6406CFF14266D31266FEA1E5C41564B777E690F5504F213160217B4B01B886A5E91547F9E2749F4D7FBD7D3B9A92EE1909D0D2263F80A76A6A24C087A091F531DBF0A0169B6A28AD662A4D18E73AFA32D779D5918D08BC8858F4DCEF97C2A24855E6EEB22B3B2E5", 16);
+        Group first = Group.parse(System.getProperty("dhke.groups")).get(0);
+        first.publicKey(first.generatePrivateKey());
+        Group.MODP_1024.publicKey(Group.MODP_1024.generatePrivateKey());
     }
 
     /**
@@ -71,15 +74,63 @@ public final class Client {
         waitForEnter("Send Key Exchange Request To Server? (Key Request Must be Sent within Two Minutes of Connection)");
         Runtime runtime = Runtime.getRuntime();
         long startKeyExchange = System.currentTimeMillis();
-        int noOfKeyExchanges = 1;
-        for(int i = 0; i < noOfKeyExchanges; i++) {
-            session.keyRequest(id, p, g);
-            // waitForEnter("Receive Server's Public Key?");
-            session.receiveKeys(p);
+        int noOfKeyExchanges = Integer.getInteger("dhke.keyExchanges", 1);
+        if (Boolean.getBoolean("dhke.pipeline")) {
+            session.pipelinedKeyExchange(id, noOfKeyExchanges, Integer.getInteger("dhke.pipelineWindow", 128));
+        } else {
+            for(int i = 0; i < noOfKeyExchanges; i++) {
+                session.keyRequest(id);
+                // waitForEnter("Receive Server's Public Key?");
+                session.receiveKeys();
+            }
         }
         long endKeyExchange = System.currentTimeMillis();
         System.out.println("Elapsed Time: " + (endKeyExchange-startKeyExchange));
         System.out.println("Memory Usage: " + (runtime.totalMemory() - runtime.freeMemory()));
+        int messages = Integer.getInteger("dhke.channel.messages", 0);
+        if (messages > 0)
+            exchangeData(messages, Integer.getInteger("dhke.channel.messageSize", 1024));
         session.close();
     }
+
+    /**
+     * Sends messages over the data channel of the session and reads back
+     * the echo of the server, at most 64 KiB unanswered at a time so
+     * neither side blocks on a full socket buffer
+     * @param messages number of messages to send
+     * @param size bytes of every message
+     */
+    private static void exchangeData(int messages, int size) {
+        DataChannel channel = session.communicate();
+        if (channel == null)
+            return;
+        ByteBuffer message = ByteBuffer.allocateDirect(size);
+        int window = Math.max(1, (64 << 10) / Math.max(1, size));
+        long start = System.nanoTime();
+        try {
+            for (int sent = 0; sent < messages; ) {
+                int batch = Math.min(window, messages - sent);
+                for (int i = 0; i < batch; i++) {
+                    message.clear();
+                    channel.send(message);
+                }
+                channel.flush();
+                for (int i = 0; i < batch; i++) {
+                    ByteBuffer echo = channel.receive();
+                    if (echo == null || echo.remaining() != size) {
+                        System.out.println("Invalid echo received");
+                        return;
+                    }
+                }
+                sent += batch;
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Data channel failed: " + e.getMessage());
+            return;
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.out.println("Data Channel: " + messages + " messages of " + size + " bytes echoed in "
+                + elapsed / 1_000_000 + " ms, " + String.format("%.1f", 2.0 * messages * size * 1000 / elapsed) + " MB/s");
+    }
 }
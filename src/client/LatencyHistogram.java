@@ -0,0 +1,94 @@
+package client;
+
+/**
+ * A histogram of latencies in microseconds with a bounded relative error
+ *
+ * Values below 128 have their own bucket, above that every power of two is
+ * split into 64 buckets, so a reported percentile is within about 1.6% of
+ * the recorded value. Not thread safe, every thread records into its own
+ * histogram and they are merged for the report.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    /**
+     * @param nanos the latency to record in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[index(micros)]++;
+        total++;
+        max = Math.max(max, micros);
+    }
+
+    /**
+     * Adds all the values recorded by another histogram
+     * @param other the histogram to add
+     */
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    long count() {
+        return total;
+    }
+
+    /**
+     * @return the largest recorded value in microseconds
+     */
+    long max() {
+        return max;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the value below which the quantile of recorded values lie, in microseconds
+     */
+    long percentile(double quantile) {
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(max, highestValue(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return a one line summary of count and percentiles
+     */
+    String summary() {
+        return String.format("count=%d p50=%dus p99=%dus p999=%dus max=%dus",
+                total, percentile(0.5), percentile(0.99), percentile(0.999), max);
+    }
+
+    private static int index(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits <= SUB_BUCKET_BITS + 1)
+            return (int) value;
+        int shift = bits - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index - shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * A non interactive load generator for a Diffie-Hellman-Key-Exchange server
+ * To run the main class takes following command line inputs
+ * ClientId -- a string representing client's Id
+ * Host Port -- the server to connect
+ * Concurrency -- number of sessions in flight at once (default 100)
+ * Rate -- handshakes started per second over all sessions, 0 for no limit (default 0)
+ * Duration -- seconds to run (default 30)
+ * With -Ddhke.resume=true every worker resumes its first session on
+ * later connections instead of a new key exchange
+ * A worker answered busy by the server waits the time the server asked for
+ * before it connects again, a worker whose handshake failed waits
+ * -Ddhke.load.failureBackoff=10 ms, doubled by every further failure in a
+ * row up to a second, so a down server is not flooded with connects
+ * With -Ddhke.async=true the sessions are chains of handshakes of an
+ * AsyncClient instead of threads, every session starts its next handshake
+ * when the last one completed; the rate is not limited in this mode
+ * With -Ddhke.mux=true the workers share a SessionPool, every handshake
+ * is a stream of one of its few connections instead of a connection of
+ * its own; connect is the wait for a free stream in this mode
+ */
+package client;
+
+import log.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public final class LoadGenerator {
+    private static String id;
+    private static String host;
+    private static int port;
+    private static int concurrency = 100;
+    private static long rate = 0;
+    private static long durationSeconds = 30;
+    private static final boolean resume = Boolean.getBoolean("dhke.resume");
+    private static final boolean async = Boolean.getBoolean("dhke.async");
+    private static final boolean mux = Boolean.getBoolean("dhke.mux");
+    private static final long failureBackoff = Math.max(0, Long.getLong("dhke.load.failureBackoff", 10));
+    private static final long MAX_BACKOFF = 1000;
+
+    private LoadGenerator() {
+        // empty constructor
+    }
+
+    /**
+     * The latencies and outcome counts of one worker
+     */
+    private static final class Result {
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram keyRequest = new LatencyHistogram();
+        final LatencyHistogram keyReceipt = new LatencyHistogram();
+        final LatencyHistogram handshake = new LatencyHistogram();
+        long failures;
+        long resumed;
+        long busy;
+
+        void merge(Result other) {
+            connect.merge(other.connect);
+            keyRequest.merge(other.keyRequest);
+            keyReceipt.merge(other.keyReceipt);
+            handshake.merge(other.handshake);
+            failures += other.failures;
+            resumed += other.resumed;
+            busy += other.busy;
+        }
+    }
+
+    /**
+     * A function to check the command line arguments
+     * @param args command line arguments
+     */
+    private static void handleArgs(String[] args) {
+        if (args.length < 3 || args.length > 6) {
+            System.out.println("Expected ClientId Host Port [Concurrency] [Rate] [Duration]");
+            System.exit(1);
+        }
+        id = args[0];
+        host = args[1];
+        try {
+            port = Integer.parseInt(args[2]);
+            if (args.length > 3)
+                concurrency = Math.max(1, Integer.parseInt(args[3]));
+            if (args.length > 4)
+                rate = Math.max(0, Long.parseLong(args[4]));
+            if (args.length > 5)
+                durationSeconds = Math.max(1, Long.parseLong(args[5]));
+        } catch (NumberFormatException e) {
+            System.out.println("Port, Concurrency, Rate and Duration must be numbers");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param failed number of failures in a row, at least 1
+     * @return milliseconds to wait before the next attempt
+     */
+    private static long backoff(int failed) {
+        return Math.min(MAX_BACKOFF, failureBackoff << Math.min(failed - 1, 10));
+    }
+
+    /**
+     * The loop of a single worker, one handshake after the other until the deadline
+     * @param deadline System.nanoTime() at which to stop
+     * @param nextStart the shared schedule of handshake starts when the rate is limited
+     * @return the measurements of this worker
+     */
+    private static Result work(long deadline, AtomicLong nextStart) {
+        Result result = new Result();
+        long interval = rate == 0 ? 0 : 1_000_000_000L / rate;
+        Session session = null;
+        int failed = 0;
+        while (true) {
+            if (interval != 0) {
+                long start = nextStart.getAndAdd(interval);
+                if (start >= deadline)
+                    break;
+                long wait = start - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            long begin = System.nanoTime();
+            if (begin >= deadline)
+                break;
+            if (session == null || !resume)
+                session = new Session(host, port);
+            if (!session.connect()) {
+                result.failures++;
+                LockSupport.parkNanos(backoff(++failed) * 1_000_000L);
+                continue;
+            }
+            long connected = System.nanoTime();
+            boolean ok;
+            long requested;
+            long received;
+            if (resume && session.resume(id)) {
+                ok = true;
+                requested = connected;
+                received = System.nanoTime();
+                result.resumed++;
+            } else {
+                ok = session.keyRequest(id);
+                requested = System.nanoTime();
+                ok = ok && session.receiveKeys();
+                received = System.nanoTime();
+            }
+            session.close();
+            result.connect.record(connected - begin);
+            if (!ok) {
+                if (session.retryAfter() > 0) {
+                    result.busy++;
+                    LockSupport.parkNanos(session.retryAfter() * 1_000_000L);
+                } else {
+                    result.failures++;
+                    LockSupport.parkNanos(backoff(++failed) * 1_000_000L);
+                }
+                continue;
+            }
+            failed = 0;
+            if (requested != connected) {
+                result.keyRequest.record(requested - connected);
+                result.keyReceipt.record(received - requested);
+            }
+            result.handshake.record(received - begin);
+        }
+        return result;
+    }
+
+    /**
+     * The loop of a single worker on streams of the shared pool
+     * @param deadline System.nanoTime() at which to stop
+     * @param nextStart the shared schedule of handshake starts when the rate is limited
+     * @param pool the pool of multiplexed connections
+     * @return the measurements of this worker
+     */
+    private static Result workMux(long deadline, AtomicLong nextStart, SessionPool pool) {
+        Result result = new Result();
+        long interval = rate == 0 ? 0 : 1_000_000_000L / rate;
+        SessionKey first = null;
+        int failed = 0;
+        while (true) {
+            if (interval != 0) {
+                long start = nextStart.getAndAdd(interval);
+                if (start >= deadline)
+                    break;
+                long wait = start - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            long begin = System.nanoTime();
+            if (begin >= deadline)
+                break;
+            long opened;
+            try (SessionPool.Stream stream = pool.open()) {
+                opened = System.nanoTime();
+                if (resume && first != null && stream.resume(first) != null) {
+                    result.resumed++;
+                } else {
+                    SessionKey key = stream.keyExchange();
+                    if (first == null)
+                        first = key;
+                }
+            } catch (AsyncClient.BusyException e) {
+                result.busy++;
+                LockSupport.parkNanos(e.retryAfter() * 1_000_000L);
+                continue;
+            } catch (IOException e) {
+                result.failures++;
+                LockSupport.parkNanos(backoff(++failed) * 1_000_000L);
+                continue;
+            }
+            failed = 0;
+            long received = System.nanoTime();
+            result.connect.record(opened - begin);
+            result.handshake.record(received - begin);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the sessions as chains of asynchronous handshakes until the deadline
+     * @param deadline System.nanoTime() at which to stop
+     * @return the measurements of every session
+     * @throws IOException if the client cannot be created
+     */
+    private static Result workAsync(long deadline) throws IOException {
+        Result result = new Result();
+        InetSocketAddress server = new InetSocketAddress(host, port);
+        try (AsyncClient client = new AsyncClient(id)) {
+            CompletableFuture<?>[] sessions = new CompletableFuture<?>[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                sessions[i] = chain(client, server, deadline, result, new int[1]);
+            }
+            CompletableFuture.allOf(sessions).join();
+        }
+        return result;
+    }
+
+    /**
+     * Starts the next handshake of a session unless the deadline passed
+     * @param failed the failures in a row of the session, only its own chain touches it
+     * @return completes once the session stopped
+     */
+    private static CompletableFuture<Void> chain(AsyncClient client, InetSocketAddress server, long deadline,
+                                                 Result result, int[] failed) {
+        long begin = System.nanoTime();
+        if (begin >= deadline)
+            return CompletableFuture.completedFuture(null);
+        return client.handshake(server).handle((key, failure) -> {
+            long pause = 0;
+            // the callbacks of all sessions share the result
+            synchronized (result) {
+                if (failure == null) {
+                    result.handshake.record(System.nanoTime() - begin);
+                    failed[0] = 0;
+                } else if (unwrap(failure) instanceof AsyncClient.BusyException) {
+                    result.busy++;
+                    pause = ((AsyncClient.BusyException) unwrap(failure)).retryAfter();
+                } else {
+                    result.failures++;
+                    pause = backoff(++failed[0]);
+                }
+            }
+            return pause;
+        }).thenCompose(pause -> pause == 0
+                ? chain(client, server, deadline, result, failed)
+                : CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(pause, TimeUnit.MILLISECONDS))
+                        .thenCompose(ignored -> chain(client, server, deadline, result, failed)));
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * The starting point of the load generation
+     * @param args an array of command line inputs
+     */
+    public static void main(String[] args) throws Exception {
+        handleArgs(args);
+        // failures are counted, the messages of every session would drown the report
+        if (System.getProperty("dhke.log.level") == null)
+            Log.level(Log.Level.ERROR);
+        System.out.println("Running " + concurrency + " sessions against " + host + ":" + port
+                + (rate == 0 ? " without rate limit" : " at " + rate + " handshakes/s") + " for " + durationSeconds + "s");
+
+        long begin = System.nanoTime();
+        long deadline = begin + durationSeconds * 1_000_000_000L;
+        Result total = new Result();
+        if (async) {
+            total.merge(workAsync(deadline));
+        } else {
+            SessionPool pool = mux ? new SessionPool(id, new InetSocketAddress(host, port)) : null;
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            AtomicLong nextStart = new AtomicLong(begin);
+            Future<?>[] workers = new Future<?>[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                workers[i] = executor.submit(() -> mux ? workMux(deadline, nextStart, pool) : work(deadline, nextStart));
+            }
+            for (Future<?> worker : workers) {
+                total.merge((Result) worker.get());
+            }
+            executor.shutdown();
+            if (pool != null) {
+                System.out.println("Multiplexed connections opened: " + pool.connectionsOpened());
+                pool.close();
+            }
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        System.out.printf("Handshakes: %d, resumed: %d, busy: %d, failures: %d, throughput: %.1f/s%n",
+                total.handshake.count(), total.resumed, total.busy, total.failures, total.handshake.count() / elapsed);
+        System.out.println("Connect      " + total.connect.summary());
+        System.out.println("Key request  " + total.keyRequest.summary());
+        System.out.println("Key receipt  " + total.keyReceipt.summary());
+        System.out.println("Handshake    " + total.handshake.summary());
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * One connection carrying many logical sessions in stream frames
+ * Callers exchange frames on the streams they acquired from their own
+ * threads, writes are serialized on the connection and a reader thread
+ * hands every reply to the caller waiting on its stream. A stream has at
+ * most one request in flight. When the connection fails every waiting
+ * caller fails with it, and the SessionPool replaces it.
+ */
+package client;
+
+import log.Log;
+import protocol.Frame;
+import protocol.Wire;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class MuxConnection {
+    private static final Log log = Log.get(MuxConnection.class);
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final AtomicReferenceArray<CompletableFuture<Frame>> pending;
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private volatile IOException failure;
+
+    /**
+     * Connects and starts the reader thread
+     * @param server the resolved address of the server
+     * @param streams the number of stream ids, the most sessions at once
+     * @param name the name of the reader thread
+     * @throws IOException if the connection cannot be established
+     */
+    MuxConnection(InetSocketAddress server, int streams, String name) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.connect(server);
+            // every request is a complete frame waited for, coalescing them only adds latency
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.pending = new AtomicReferenceArray<>(streams);
+        for (int i = 0; i < streams; i++) {
+            free.add(i);
+        }
+        Thread reader = new Thread(this::read, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return a free stream id, -1 if every stream is in use
+     */
+    synchronized int acquire() {
+        Integer stream = free.poll();
+        return stream == null ? -1 : stream;
+    }
+
+    /**
+     * @param stream an id returned by acquire that has no request in flight
+     */
+    synchronized void release(int stream) {
+        free.push(stream);
+    }
+
+    /**
+     * @return if the connection failed or was closed
+     */
+    boolean broken() {
+        return failure != null;
+    }
+
+    /**
+     * Sends a request on a stream and waits for the reply on it
+     * @param stream the acquired stream id
+     * @param buffer a heap buffer with the request between 0 and its position,
+     * wrapped into the stream frame in place
+     * @param timeoutMillis the limit of the wait, 0 for no limit
+     * @return the reply
+     * @throws SocketTimeoutException if no reply came in time, the id must not be used again
+     * @throws IOException if the connection failed or the server is busy
+     */
+    Frame exchange(int stream, ByteBuffer buffer, long timeoutMillis) throws IOException {
+        Wire.wrapStream(buffer, 0, stream);
+        CompletableFuture<Frame> reply = new CompletableFuture<>();
+        if (!pending.compareAndSet(stream, null, reply))
+            throw new IllegalStateException("Stream " + stream + " has a request in flight");
+        // the reader fails what is pending once it failed, a request registered later checks itself
+        if (failure != null) {
+            pending.set(stream, null);
+            throw failure;
+        }
+        try {
+            synchronized (out) {
+                Wire.writeFrames(out, buffer);
+                out.flush();
+            }
+            return timeoutMillis > 0 ? reply.get(timeoutMillis, TimeUnit.MILLISECONDS) : reply.get();
+        } catch (TimeoutException e) {
+            pending.compareAndSet(stream, reply, null);
+            throw new SocketTimeoutException("No reply on stream " + stream + " within " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            pending.compareAndSet(stream, reply, null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on stream " + stream);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (IOException e) {
+            pending.compareAndSet(stream, reply, null);
+            fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * The loop of the reader thread, a fresh frame per reply
+     * as it is handed to another thread
+     */
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+        try {
+            while (true) {
+                Frame frame = new Frame();
+                Wire.readFrame(in, buffer, frame);
+                // a busy server answers before it reads anything, outside of any stream
+                if (frame.type() == Wire.BUSY)
+                    throw new AsyncClient.BusyException(frame.id(), frame.lifetime());
+                int stream = frame.stream();
+                if (stream < 0 || stream >= pending.length())
+                    throw new ProtocolException("Reply outside of the streams of the connection");
+                CompletableFuture<Frame> reply = pending.getAndSet(stream, null);
+                if (reply != null)
+                    reply.complete(frame);
+                else
+                    log.warn("Dropped a late reply on stream {}", stream);
+            }
+        } catch (EOFException e) {
+            fail(new EOFException("Connection closed by the server"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Marks the connection broken, closes it and fails every waiting caller
+     * @param cause the failure
+     */
+    private void fail(IOException cause) {
+        if (failure == null)
+            failure = cause;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the connection");
+        }
+        for (int i = 0; i < pending.length(); i++) {
+            CompletableFuture<Frame> reply = pending.getAndSet(i, null);
+            if (reply != null)
+                reply.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Closes the connection, waiting callers fail
+     */
+    void close() {
+        fail(new IOException("Connection closed"));
+        /* Documentation */
+        log.debug("Multiplexed Connection Closed");
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Replays the handshake traffic a server recorded with -Ddhke.record
+ * To run the main class takes following command line inputs
+ * Transcript -- the recorded file
+ * Target -- host:port of a running server, or inprocess to start a
+ * LoopbackServer in this process (default inprocess)
+ * Speed -- original to keep the recorded timing, max to send everything
+ * at once, or a factor to speed the recording up by (default original)
+ * Every recorded connection is opened at its recorded time, sends the
+ * recorded bytes at their recorded times, then half closes and reads the
+ * replies until the server closes. The clients of the recording waited for
+ * the replies between their requests, the replay keeps their timing
+ * instead. -Ddhke.replay.threads (default 64) bounds the connections
+ * replayed at once.
+ */
+package client;
+
+import log.Log;
+import protocol.Transcript;
+import server.LoopbackServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Replay {
+    private static Path transcript;
+    private static String target = "inprocess";
+    private static double speed = 1;
+    /** The recorded time of the first connection, the replay starts with it */
+    private static long origin;
+    private static final int threads = Math.max(1, Integer.getInteger("dhke.replay.threads", 64));
+
+    private Replay() {
+        // empty constructor
+    }
+
+    /**
+     * The latencies and outcome counts of the replay
+     */
+    private static final class Result {
+        final LatencyHistogram startLag = new LatencyHistogram();
+        final LatencyHistogram connection = new LatencyHistogram();
+        final LatencyHistogram lastReply = new LatencyHistogram();
+        long sent;
+        long received;
+        long failures;
+    }
+
+    /**
+     * A function to check the command line arguments
+     * @param args command line arguments
+     */
+    private static void handleArgs(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Expected Transcript [host:port|inprocess] [original|max|<factor>]");
+            System.exit(1);
+        }
+        transcript = Path.of(args[0]);
+        if (args.length > 1)
+            target = args[1];
+        if (args.length > 2) {
+            if (args[2].equals("max")) {
+                speed = 0;
+            } else if (!args[2].equals("original")) {
+                try {
+                    speed = Double.parseDouble(args[2]);
+                } catch (NumberFormatException e) {
+                    speed = -1;
+                }
+                if (!(speed > 0)) {
+                    System.out.println("Speed must be original, max or a positive factor");
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param micros a time of the recording
+     * @return the time of the replay in nanoseconds, 0 at maximum speed
+     */
+    private static long scaled(long micros) {
+        return speed == 0 ? 0 : (long) (micros * 1000 / speed);
+    }
+
+    /**
+     * Replays a single connection on the calling thread
+     * @param server the address of the server
+     * @param connection the recorded connection
+     * @param begin System.nanoTime() of the start of the replay
+     * @param result the shared measurements
+     */
+    private static void replay(InetSocketAddress server, Transcript.Connection connection, long begin, Result result) {
+        long opened = System.nanoTime();
+        long lag = opened - begin - scaled(connection.openedAt() - origin);
+        long sent = 0;
+        long received = 0;
+        long lastSent;
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(30000);
+            socket.connect(server);
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < connection.chunks(); i++) {
+                long wait = opened + scaled(connection.offset(i)) - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                out.write(connection.chunk(i));
+                sent += connection.chunk(i).length;
+            }
+            out.flush();
+            socket.shutdownOutput();
+            lastSent = System.nanoTime();
+            InputStream in = socket.getInputStream();
+            byte[] replies = new byte[8192];
+            int n;
+            while ((n = in.read(replies)) >= 0) {
+                received += n;
+            }
+        } catch (IOException e) {
+            synchronized (result) {
+                result.failures++;
+            }
+            return;
+        }
+        long closed = System.nanoTime();
+        // the tasks of all threads share the result
+        synchronized (result) {
+            result.startLag.record(Math.max(0, lag));
+            result.connection.record(closed - opened);
+            result.lastReply.record(closed - lastSent);
+            result.sent += sent;
+            result.received += received;
+        }
+    }
+
+    /**
+     * The starting point of the replay
+     * @param args an array of command line inputs
+     */
+    public static void main(String[] args) throws Exception {
+        handleArgs(args);
+        // failures are counted, the messages of every connection would drown the report
+        if (System.getProperty("dhke.log.level") == null)
+            Log.level(Log.Level.ERROR);
+        List<Transcript.Connection> connections;
+        try {
+            connections = Transcript.read(transcript);
+        } catch (IOException e) {
+            System.out.println("Unable to read the transcript: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        origin = connections.isEmpty() ? 0 : connections.get(0).openedAt();
+        LoopbackServer loopback = null;
+        InetSocketAddress server;
+        if (target.equals("inprocess")) {
+            loopback = new LoopbackServer(Integer.getInteger("dhke.keyPool.high", 256));
+            server = new InetSocketAddress("localhost", loopback.port());
+        } else {
+            int colon = target.lastIndexOf(':');
+            if (colon < 0) {
+                System.out.println("Target must be host:port or inprocess");
+                System.exit(1);
+            }
+            server = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        }
+        System.out.println("Replaying " + connections.size() + " connections against " + target + " at "
+                + (speed == 0 ? "maximum speed" : speed == 1 ? "the original speed" : speed + "x the original speed")
+                + " on " + threads + " threads");
+
+        Result result = new Result();
+        CountDownLatch done = new CountDownLatch(connections.size());
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(threads);
+        long begin = System.nanoTime();
+        for (Transcript.Connection connection : connections) {
+            executor.schedule(() -> {
+                try {
+                    replay(server, connection, begin, result);
+                } finally {
+                    done.countDown();
+                }
+            }, begin + scaled(connection.openedAt() - origin) - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        executor.shutdown();
+
+        System.out.printf("Connections: %d, failures: %d, sent: %d bytes, received: %d bytes, throughput: %.1f connections/s%n",
+                result.connection.count(), result.failures, result.sent, result.received,
+                result.connection.count() / elapsed);
+        System.out.println("Start lag    " + result.startLag.summary());
+        System.out.println("Connection   " + result.connection.summary());
+        System.out.println("Last reply   " + result.lastReply.summary());
+        if (loopback != null) {
+            System.out.println(loopback.stats());
+            loopback.close();
+        }
+    }
+}
@@ -3,54 +3,91 @@
  */
 package client;
 
+import crypto.Entropy;
+import crypto.Group;
+import log.Log;
+import protocol.DataChannel;
+import protocol.Frame;
+import protocol.Wire;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 
 class Session {
+    private static final Log log = Log.get(Session.class);
     private String serverId;
     private BigInteger sessionKey;
     private BigInteger privateSessionKey;
+    private Group group = Group.MODP_1024;
+    private String clientId;
+    private byte[] ticket;
+    private BigInteger resumptionKey;
+    private int retryAfter;
     private Socket socket;
     private DataOutputStream out;
     private DataInputStream in;
     private final String ip;
     private final int port;
+    private final boolean binary;
+    private final List<Group> groups;
+    private final byte[] offered;
+    private final boolean negotiate;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final Frame frame = new Frame();
 
     /**
      * @param ip the ip address or host to connect
      * @param port the port number to identify the process
+     * The binary protocol is used unless the dhke.protocol property is text
+     * and it negotiates the groups listed by dhke.groups (default every
+     * group, the cheapest first), the key is sent in the first of them.
+     * Listing only modp1024 talks to servers without negotiation.
+     * The text protocol always uses modp1024.
+     * @throws IllegalArgumentException if a configured group is unknown
      */
     public Session(String ip, int port) {
         this.ip = ip;
         this.port = port;
+        this.binary = !"text".equals(System.getProperty("dhke.protocol"));
+        this.groups = Group.parse(System.getProperty("dhke.groups"));
+        this.offered = new byte[groups.size()];
+        for (int i = 0; i < offered.length; i++) {
+            offered[i] = groups.get(i).id();
+        }
+        this.negotiate = binary && !(groups.size() == 1 && groups.get(0) == Group.MODP_1024);
     }
 
     /**
-     * A utility Function to calculate Session Key
-     * @param p The prime number is needed to calculate the session key
-     *          Session key is a random number between 1 and p-1
-     * @return THe session key
+     * Calculates the session key
+     * @param serverPublicKey public key returned by server
+     * @return the calculated session key, null if the server's key is not valid
      */
-    private static BigInteger calcPrivateSessionKey(BigInteger p) {
-        Random rand = new Random();
-        BigInteger randomLong = BigInteger.valueOf(rand.nextLong());
-        BigInteger midState = p.multiply(randomLong);
-        return midState.divideAndRemainder(BigInteger.valueOf(Long.MAX_VALUE))[0];
+    private BigInteger calcSessionKey(BigInteger serverPublicKey) {
+        return calcSessionKey(group, serverPublicKey, privateSessionKey);
     }
 
     /**
-     * Calculates the session key
+     * Calculates a session key with the given private key
+     * @param group the group of the keys
      * @param serverPublicKey public key returned by server
-     * @param p the prime no
-     * @return the calculated session key
+     * @param privateKey the private key sent with the request
+     * @return the calculated session key, null if the server's key is not valid
      */
-    private BigInteger calcSessionKey(BigInteger serverPublicKey, BigInteger p) {
-        return serverPublicKey.modPow(privateSessionKey, p);
+    private static BigInteger calcSessionKey(Group group, BigInteger serverPublicKey, BigInteger privateKey) {
+        try {
+            return group.sharedSecret(serverPublicKey, privateKey);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -62,15 +99,17 @@ class Session {
             try {
                 socket.close();
             } catch (Exception e) {
-                System.out.println("Client busy couldn't establish new connection");
+                log.warn("Client busy couldn't establish new connection");
             }
         }
         /* Documentation */
-        System.out.println("Sending Connection Request To Server");
+        log.debug("Sending Connection Request To Server");
+        retryAfter = 0;
         try {
-            socket = new Socket(ip, port);
+            // a channel backed socket, the data channel writes its records with gathering writes
+            socket = SocketChannel.open(new InetSocketAddress(ip, port)).socket();
         } catch (Exception e) {
-            System.out.println("Invalid Host or Port provided");
+            log.warn("Invalid Host or Port provided");
             return false;
         }
         return establishIO();
@@ -82,14 +121,14 @@ class Session {
      */
     private boolean establishIO() {
         if (socket == null) {
-            System.out.println("Establish a Connection Before");
+            log.warn("Establish a Connection Before");
             return false;
         }
         if (in != null) {
             try {
                 in.close();
             } catch (Exception e) {
-                System.out.println("Input Channel Error");
+                log.warn("Input Channel Error");
                 return false;
             }
         }
@@ -97,7 +136,7 @@ class Session {
             try {
                 out.close();
             } catch (Exception e) {
-                System.out.println("Output Channel Error");
+                log.warn("Output Channel Error");
                 return false;
             }
         }
@@ -105,7 +144,7 @@ class Session {
             out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (Exception e) {
-            System.out.println("Unable to open a I/O Channel");
+            log.warn("Unable to open a I/O Channel");
             return false;
         }
         return true;
@@ -113,66 +152,260 @@ class Session {
 
     /**
      * Receive Keys from the Server
-     * @param p prime number
+     * When the server prefers another of the offered groups the key
+     * request is sent again with a key in that group
+     * @return if the session key was established
      */
-    public void receiveKeys(BigInteger p) {
-        System.out.println("Waiting for Server's Public Key");
-        String[] receivedData;
-        try {
-            receivedData = in.readUTF().split("\\s+");
-        } catch (Exception e) {
-            System.out.println("Unable to get back Server's Public Key");
-            return;
-        }
-        serverId = receivedData[0];
+    public boolean receiveKeys() {
+        log.debug("Waiting for Server's Public Key");
         BigInteger serverPublicKey;
-        try {
-            serverPublicKey = new BigInteger(receivedData[1]);
-        } catch (Exception e) {
-            System.out.println("Invalid key received");
-            return;
+        if (binary) {
+            try {
+                Wire.readFrame(in, buffer, frame);
+                if (busy())
+                    return false;
+                if (frame.type() == Wire.GROUP_RETRY) {
+                    Group chosen = Group.byId(frame.group());
+                    if (chosen == null || chosen == group || !groups.contains(chosen)) {
+                        log.warn("No common group with the server");
+                        return false;
+                    }
+                    group = chosen;
+                    /* Documentation */
+                    log.debug("Server asked for a key in {}", group);
+                    if (!sendKey())
+                        return false;
+                    Wire.readFrame(in, buffer, frame);
+                }
+            } catch (Exception e) {
+                log.warn("Unable to get back Server's Public Key");
+                return false;
+            }
+            boolean expected = negotiate
+                    ? frame.type() == Wire.GROUP_RESPONSE && frame.group() == group.id()
+                    : frame.type() == Wire.KEY_RESPONSE || frame.type() == Wire.TICKET_RESPONSE;
+            if (!expected) {
+                log.warn("Invalid key received");
+                return false;
+            }
+            serverId = frame.id();
+            serverPublicKey = frame.key();
+            // keep the ticket to resume this session on a later connection
+            ticket = frame.ticket() != null && frame.ticket().length > 0 ? frame.ticket() : null;
+        } else {
+            String[] receivedData;
+            try {
+                receivedData = in.readUTF().split("\\s+");
+            } catch (Exception e) {
+                log.warn("Unable to get back Server's Public Key");
+                return false;
+            }
+            serverId = receivedData[0];
+            try {
+                serverPublicKey = new BigInteger(receivedData[1]);
+            } catch (Exception e) {
+                log.warn("Invalid key received");
+                return false;
+            }
+        }
+        sessionKey = calcSessionKey(serverPublicKey);
+        if (sessionKey == null) {
+            log.warn("Invalid key received");
+            return false;
+        }
+        if (ticket != null) {
+            // a resumed session continues with a key derived for the ticket
+            byte[] secret = DataChannel.resumptionSecret(sessionKey, ticket);
+            resumptionKey = new BigInteger(1, secret);
+            Arrays.fill(secret, (byte) 0);
         }
-        sessionKey = calcSessionKey(serverPublicKey, p);
         /* Documentation */
-        System.out.println("Session key Established");
-        System.out.println("Session Key:" + sessionKey.toString());
+        log.debug("Session key Established with: {} in {}", serverId, group);
+        log.trace("Session Key: {}", Log.secret(sessionKey));
+        return true;
+    }
+
+    /**
+     * Checks if the frame just read sheds the connection
+     * @return if the server is busy and closed the connection
+     */
+    private boolean busy() {
+        if (frame.type() != Wire.BUSY)
+            return false;
+        retryAfter = frame.lifetime();
+        log.warn("Server busy, retry after {} ms", retryAfter);
+        return true;
+    }
+
+    /**
+     * @return milliseconds the server asked to wait before connecting again, 0 if it did not
+     */
+    public int retryAfter() {
+        return retryAfter;
     }
 
     /**
      * Function to start the Key Request
      * @param id the client id, to send the server a client's info
-     * @param p the prime no
-     * @param g the generator no
+     * @return if the request was sent
      */
-    public void keyRequest(String id, BigInteger p, BigInteger g) {
+    public boolean keyRequest(String id) {
         if (socket == null) {
-            System.out.println("First Establish a Connection");
-            return;
+            log.warn("First Establish a Connection");
+            return false;
         }
         if (in == null || out == null) {
             establishIO();
         }
         /* Documentation */
-        System.out.println("Starting Key Exchange");
-        privateSessionKey = calcPrivateSessionKey(p);
-        BigInteger publicSessionKey = g.modPow(privateSessionKey,p);
-        // sending keys to client
-        // First build the message with a particular format
-        // "id g^x\n"
-        StringBuilder buf = new StringBuilder();
-        buf.append(id);
-        buf.append(' ');
-        buf.append(publicSessionKey.toString());
-        buf.append('\n');
+        log.debug("Starting Key Exchange");
+        clientId = id;
+        group = negotiate ? groups.get(0) : Group.MODP_1024;
+        return sendKey();
+    }
+
+    /**
+     * Sends a fresh public key in the current group
+     * @return if the request was sent
+     */
+    private boolean sendKey() {
+        String id = clientId;
+        privateSessionKey = group.generatePrivateKey();
+        BigInteger publicSessionKey = group.publicKey(privateSessionKey);
         try {
             // send the keys
-            out.writeUTF(buf.toString());
+            if (negotiate) {
+                buffer.clear();
+                Wire.putGroupRequest(buffer, group.id(), offered, id, publicSessionKey, group.keyWidth());
+                Wire.writeFrames(out, buffer);
+            } else if (binary) {
+                buffer.clear();
+                Wire.putKeyFrame(buffer, Wire.TICKET_REQUEST, id, publicSessionKey, group.keyWidth());
+                Wire.writeFrames(out, buffer);
+            } else {
+                // First build the message with a particular format
+                // "id g^x\n"
+                StringBuilder buf = new StringBuilder();
+                buf.append(id);
+                buf.append(' ');
+                buf.append(publicSessionKey.toString());
+                buf.append('\n');
+                out.writeUTF(buf.toString());
+            }
+            out.flush();
+        } catch (Exception e) {
+            log.warn("Unable to initiate a session");
+            return false;
+        }
+        /* Documentation */
+        log.debug("Request for Key Exchange Sent to Server");
+        return true;
+    }
+
+    /**
+     * Resumes the last established session on the current connection
+     * with the ticket the server sent, skipping the key exchange
+     * Both ends continue with the key derived from the session key for
+     * the ticket, the server keeps only that one
+     * @param id the client id the session was established with
+     * @return if the session was resumed, otherwise a key exchange is needed
+     */
+    public boolean resume(String id) {
+        if (socket == null || !binary || ticket == null || sessionKey == null)
+            return false;
+        if (in == null || out == null) {
+            establishIO();
+        }
+        try {
+            buffer.clear();
+            Wire.putResumeRequest(buffer, id, ticket);
+            Wire.writeFrames(out, buffer);
             out.flush();
+            Wire.readFrame(in, buffer, frame);
+        } catch (Exception e) {
+            log.warn("Unable to resume the session");
+            return false;
+        }
+        if (busy())
+            return false;
+        if (frame.type() != Wire.RESUME_ACCEPTED) {
+            /* Documentation */
+            log.debug("Session Resumption Rejected");
+            ticket = null;
+            return false;
+        }
+        serverId = frame.id();
+        sessionKey = resumptionKey;
+        /* Documentation */
+        log.debug("Session Resumed");
+        return true;
+    }
+
+    /**
+     * Runs count key exchanges without waiting for each response
+     * Requests are tagged with sequence numbers and streamed to the server,
+     * at most window of them unanswered at a time so neither side blocks
+     * on a full socket buffer. Only the binary protocol supports this,
+     * always in modp1024.
+     * @param id the client id, to send the server a client's info
+     * @param count the number of keys to establish
+     * @param window the maximum number of unanswered requests
+     * @return the session keys indexed by sequence number, null on failure
+     */
+    public BigInteger[] pipelinedKeyExchange(String id, int count, int window) {
+        if (socket == null || !binary) {
+            log.warn("Pipelining needs a binary protocol connection");
+            return null;
+        }
+        if (in == null || out == null) {
+            establishIO();
+        }
+        /* Documentation */
+        log.debug("Starting {} Pipelined Key Exchanges", count);
+        group = Group.MODP_1024;
+        int width = group.keyWidth();
+        window = Math.max(1, window);
+        BigInteger[] privateKeys = new BigInteger[count];
+        BigInteger[] sessionKeys = new BigInteger[count];
+        int sent = 0;
+        int received = 0;
+        try {
+            while (received < count) {
+                while (sent < count && sent - received < window) {
+                    privateKeys[sent] = group.generatePrivateKey();
+                    buffer.clear();
+                    Wire.putKeyFrame(buffer, Wire.PIPELINED_REQUEST, sent, id, group.publicKey(privateKeys[sent]), width);
+                    Wire.writeFrames(out, buffer);
+                    sent++;
+                }
+                out.flush();
+                // read until half of the window is free again
+                do {
+                    Wire.readFrame(in, buffer, frame);
+                    int sequence = frame.sequence();
+                    if (frame.type() != Wire.PIPELINED_RESPONSE || sequence < 0 || sequence >= sent
+                            || sessionKeys[sequence] != null) {
+                        log.warn("Invalid key received");
+                        return null;
+                    }
+                    serverId = frame.id();
+                    sessionKeys[sequence] = calcSessionKey(group, frame.key(), privateKeys[sequence]);
+                    if (sessionKeys[sequence] == null) {
+                        log.warn("Invalid key received");
+                        return null;
+                    }
+                    received++;
+                } while (received < sent && (sent == count || sent - received > window / 2));
+            }
         } catch (Exception e) {
-            System.out.println("Unable to initiate a session");
+            log.warn("Unable to get back Server's Public Keys");
+            return null;
         }
+        privateSessionKey = privateKeys[count - 1];
+        sessionKey = sessionKeys[count - 1];
         /* Documentation */
-        System.out.println("Request for Key Exchange Sent to Server");
+        log.debug("{} Session keys Established with: {}", count, serverId);
+        return sessionKeys;
     }
 
     /**
@@ -187,15 +420,49 @@ class Session {
             if (out != null)
                 out.close();
         } catch (Exception e) {
-            System.out.println("Unable to close Resources");
+            log.warn("Unable to close Resources");
         }
         /* Documentation */
-        System.out.println("Connection with Server Closed");
+        log.debug("Connection with Server Closed");
     }
 
     /**
      * A function to communicate from the server
+     * Opens the encrypted data channel of the established or resumed
+     * session, the connection carries only its records afterwards.
+     * Only the binary protocol supports this.
+     * @return the channel, null if it could not be opened
      */
-    public void communicate() {
+    public DataChannel communicate() {
+        if (socket == null || !binary || sessionKey == null) {
+            log.warn("A data channel needs a session key on a binary protocol connection");
+            return null;
+        }
+        byte[] clientNonce = new byte[DataChannel.NONCE_LENGTH];
+        Entropy.nextBytes(clientNonce);
+        try {
+            buffer.clear();
+            Wire.putChannelFrame(buffer, Wire.CHANNEL_OPEN, clientNonce);
+            Wire.writeFrames(out, buffer);
+            out.flush();
+            Wire.readFrame(in, buffer, frame);
+            // records are flushed on purpose, waiting to coalesce them only adds latency
+            socket.setTcpNoDelay(true);
+        } catch (Exception e) {
+            log.warn("Unable to open a data channel");
+            return null;
+        }
+        if (frame.type() == Wire.CHANNEL_REFUSED) {
+            log.warn("Data channel refused by {}, it serves data channels only in its thread modes", frame.id());
+            return null;
+        }
+        if (frame.type() != Wire.CHANNEL_ACCEPT || frame.nonce().length != DataChannel.NONCE_LENGTH) {
+            log.warn("Data channel refused by the server");
+            return null;
+        }
+        SocketChannel channel = socket.getChannel();
+        /* Documentation */
+        log.debug("Data Channel Opened with: {}", serverId);
+        return new DataChannel(channel, channel, sessionKey, clientNonce, frame.nonce(), true);
     }
 }
@@ -0,0 +1,72 @@
+/**
+ * The outcome of a completed key exchange
+ */
+package client;
+
+import crypto.Group;
+import log.Log;
+
+import java.math.BigInteger;
+
+public final class SessionKey {
+    private final String serverId;
+    private final Group group;
+    private final BigInteger key;
+    private final byte[] ticket;
+    private final int lifetime;
+
+    /**
+     * @param serverId the id the server answered with
+     * @param group the group the key was agreed in
+     * @param key the shared secret
+     * @param ticket the ticket to resume the session, null if the server sent none
+     * @param lifetime seconds the ticket is valid
+     */
+    SessionKey(String serverId, Group group, BigInteger key, byte[] ticket, int lifetime) {
+        this.serverId = serverId;
+        this.group = group;
+        this.key = key;
+        this.ticket = ticket;
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * @return the id the server answered with
+     */
+    public String serverId() {
+        return serverId;
+    }
+
+    /**
+     * @return the group the key was agreed in
+     */
+    public Group group() {
+        return group;
+    }
+
+    /**
+     * @return the shared secret
+     */
+    public BigInteger key() {
+        return key;
+    }
+
+    /**
+     * @return the ticket to resume the session, null if the server sent none
+     */
+    public byte[] ticket() {
+        return ticket == null ? null : ticket.clone();
+    }
+
+    /**
+     * @return seconds the ticket is valid
+     */
+    public int lifetime() {
+        return lifetime;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionKey with " + serverId + " in " + group + ": " + Log.secret(key);
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Logical sessions to one Diffie-Hellman-Key-Exchange server multiplexed
+ * over a few shared connections
+ * A Session owns a connection of its own, a caller needing many keys pays
+ * a connect and a teardown for each. The pool instead opens up to
+ * dhke.mux.connections (default 4) connections when they are first needed
+ * and hands out streams of them, dhke.mux.streams (default 64, at most the
+ * server's dhke.mux.maxStreams) per connection. Every stream runs its own
+ * key exchange or resumption and holds its own key, many threads use the
+ * pool at once. Closing a stream returns its id for the next caller, a
+ * failed connection is replaced by the next open. Only the binary protocol
+ * is spoken, the groups offered are listed by dhke.groups as for Session;
+ * data channels need a connection of their own.
+ */
+package client;
+
+import crypto.Group;
+import log.Log;
+import protocol.DataChannel;
+import protocol.Frame;
+import protocol.Wire;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public final class SessionPool implements AutoCloseable {
+    private static final Log log = Log.get(SessionPool.class);
+    private final String clientId;
+    private final InetSocketAddress server;
+    private final MuxConnection[] connections;
+    /** Slots whose connection is being opened, outside of the lock */
+    private final boolean[] connecting;
+    private final int streams;
+    private final long timeoutMillis;
+    private final List<Group> groups;
+    private final byte[] offered;
+    private final boolean negotiate;
+    private int next;
+    private int opened;
+    private boolean closed;
+
+    /**
+     * Creates a pool configured by the system properties
+     * dhke.mux.connections (default 4), dhke.mux.streams (default 64) and
+     * dhke.mux.timeout (default 10000 ms), the limit of waiting for a free
+     * stream and of every exchange
+     * @param clientId the id sent to the server
+     * @param server the resolved address of the server
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    public SessionPool(String clientId, InetSocketAddress server) {
+        this(clientId, server, Integer.getInteger("dhke.mux.connections", 4),
+                Integer.getInteger("dhke.mux.streams", 64), Long.getLong("dhke.mux.timeout", 10000));
+    }
+
+    /**
+     * @param clientId the id sent to the server
+     * @param server the resolved address of the server
+     * @param connections the most connections opened
+     * @param streams the streams of every connection
+     * @param timeoutMillis the limit of waiting for a free stream and of an exchange, 0 for no limit
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    public SessionPool(String clientId, InetSocketAddress server, int connections, int streams, long timeoutMillis) {
+        this.clientId = clientId;
+        this.server = server;
+        this.connections = new MuxConnection[Math.max(1, connections)];
+        this.connecting = new boolean[this.connections.length];
+        this.streams = Math.max(1, streams);
+        this.timeoutMillis = Math.max(0, timeoutMillis);
+        this.groups = Group.parse(System.getProperty("dhke.groups"));
+        this.offered = new byte[groups.size()];
+        for (int i = 0; i < offered.length; i++) {
+            offered[i] = groups.get(i).id();
+        }
+        this.negotiate = !(groups.size() == 1 && groups.get(0) == Group.MODP_1024);
+    }
+
+    /**
+     * One logical session on a pooled connection, used by one thread at a time
+     */
+    public final class Stream implements AutoCloseable {
+        private final MuxConnection connection;
+        private final int id;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+        private SessionKey key;
+        private boolean lost;
+        private boolean released;
+
+        private Stream(MuxConnection connection, int id) {
+            this.connection = connection;
+            this.id = id;
+        }
+
+        /**
+         * @return the id of the stream on its connection
+         */
+        public int id() {
+            return id;
+        }
+
+        /**
+         * @return the key of the last exchange or resumption, null before the first
+         */
+        public SessionKey key() {
+            return key;
+        }
+
+        /**
+         * Runs a key exchange on the stream, a retry in the group the
+         * server prefers included
+         * @return the established key
+         * @throws AsyncClient.BusyException if the server shed the connection
+         * @throws IOException if the exchange failed
+         */
+        public SessionKey keyExchange() throws IOException {
+            Group group = negotiate ? groups.get(0) : Group.MODP_1024;
+            boolean retried = false;
+            while (true) {
+                BigInteger privateKey = group.generatePrivateKey();
+                BigInteger publicKey = group.publicKey(privateKey);
+                buffer.clear();
+                if (negotiate)
+                    Wire.putGroupRequest(buffer, group.id(), offered, clientId, publicKey, group.keyWidth());
+                else
+                    Wire.putKeyFrame(buffer, Wire.TICKET_REQUEST, clientId, publicKey, group.keyWidth());
+                Frame frame = send();
+                if (frame.type() == Wire.GROUP_RETRY) {
+                    Group chosen = Group.byId(frame.group());
+                    if (retried || chosen == null || chosen == group || !groups.contains(chosen))
+                        throw new IOException("No common group with the server");
+                    group = chosen;
+                    retried = true;
+                    /* Documentation */
+                    log.debug("Server asked for a key in {} on stream {}", group, id);
+                    continue;
+                }
+                boolean expected = negotiate
+                        ? frame.type() == Wire.GROUP_RESPONSE && frame.group() == group.id()
+                        : frame.type() == Wire.TICKET_RESPONSE || frame.type() == Wire.KEY_RESPONSE;
+                if (!expected)
+                    throw new IOException("Invalid key received");
+                BigInteger sessionKey;
+                try {
+                    sessionKey = group.sharedSecret(frame.key(), privateKey);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid key received");
+                }
+                byte[] ticket = frame.ticket() != null && frame.ticket().length > 0 ? frame.ticket() : null;
+                key = new SessionKey(frame.id(), group, sessionKey, ticket, frame.lifetime());
+                /* Documentation */
+                log.debug("Session key Established with: {} in {} on stream {}", frame.id(), group, id);
+                return key;
+            }
+        }
+
+        /**
+         * Resumes a session established before, on any stream or connection,
+         * with the ticket the server sent for it
+         * @param previous the key of the session, it must carry a ticket
+         * @return the key both ends continue with, null if the server rejected the ticket
+         * @throws IOException if the exchange failed
+         */
+        public SessionKey resume(SessionKey previous) throws IOException {
+            byte[] ticket = previous.ticket();
+            if (ticket == null)
+                return null;
+            buffer.clear();
+            Wire.putResumeRequest(buffer, clientId, ticket);
+            Frame frame = send();
+            if (frame.type() != Wire.RESUME_ACCEPTED) {
+                /* Documentation */
+                log.debug("Session Resumption Rejected on stream {}", id);
+                return null;
+            }
+            // a resumed session continues with a key derived for the ticket
+            byte[] secret = DataChannel.resumptionSecret(previous.key(), ticket);
+            key = new SessionKey(frame.id(), previous.group(), new BigInteger(1, secret), null, 0);
+            Arrays.fill(secret, (byte) 0);
+            /* Documentation */
+            log.debug("Session Resumed on stream {}", id);
+            return key;
+        }
+
+        private Frame send() throws IOException {
+            if (lost || released)
+                throw new IOException("Stream " + id + " can no longer be used");
+            try {
+                return connection.exchange(id, buffer, timeoutMillis);
+            } catch (SocketTimeoutException e) {
+                // a late reply may still come, the id must not carry another request
+                lost = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the stream to the pool, the key stays usable
+         */
+        @Override
+        public void close() {
+            if (released)
+                return;
+            released = true;
+            if (lost)
+                return;
+            connection.release(id);
+            synchronized (SessionPool.this) {
+                SessionPool.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes a free stream, connections are opened when first needed and
+     * the streams spread over them, waits for a stream to be returned
+     * when all are in use
+     * A connection is opened outside of the lock of the pool, the other
+     * callers take streams of the open connections meanwhile; when the
+     * connect fails the other connections are tried
+     * @return the stream, close it when done
+     * @throws SocketTimeoutException if no stream became free in time
+     * @throws IOException if the pool is closed or no connection could be opened
+     */
+    public Stream open() throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        boolean[] failed = new boolean[connections.length];
+        IOException failure = null;
+        while (true) {
+            int slot = -1;
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Session pool closed");
+                boolean pending = false;
+                for (int i = 0; i < connections.length && slot < 0; i++) {
+                    int candidate = (next + i) % connections.length;
+                    MuxConnection connection = connections[candidate];
+                    if (connection != null && connection.broken()) {
+                        connection.close();
+                        connections[candidate] = connection = null;
+                    }
+                    if (connection != null) {
+                        pending = true;
+                        int id = connection.acquire();
+                        if (id >= 0) {
+                            next = (candidate + 1) % connections.length;
+                            return new Stream(connection, id);
+                        }
+                    } else if (connecting[candidate]) {
+                        pending = true;
+                    } else if (!failed[candidate]) {
+                        // the slot stays reserved while the connect runs
+                        connecting[candidate] = true;
+                        slot = candidate;
+                    }
+                }
+                if (slot < 0) {
+                    // nothing open or opening is left to wait for
+                    if (!pending && failure != null)
+                        throw failure;
+                    long wait = (deadline - System.nanoTime()) / 1_000_000;
+                    if (timeoutMillis > 0 && wait <= 0)
+                        throw new SocketTimeoutException("No free stream within " + timeoutMillis + " ms");
+                    try {
+                        wait(timeoutMillis > 0 ? wait : 0);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a free stream");
+                    }
+                    continue;
+                }
+            }
+            MuxConnection connection = null;
+            try {
+                connection = new MuxConnection(server, streams, "mux-reader-" + slot);
+                /* Documentation */
+                log.debug("Multiplexed Connection {} Opened to {}", slot, server);
+            } catch (IOException e) {
+                failed[slot] = true;
+                failure = e;
+                log.warn("Unable to open multiplexed connection {} to {}: {}", slot, server, e.getMessage());
+            }
+            synchronized (this) {
+                connecting[slot] = false;
+                if (connection != null && closed) {
+                    connection.close();
+                } else if (connection != null) {
+                    connections[slot] = connection;
+                    opened++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return number of connections the pool opened so far, replacements included
+     */
+    public synchronized int connectionsOpened() {
+        return opened;
+    }
+
+    /**
+     * Closes every connection, exchanges still running fail
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null)
+                connections[i].close();
+            connections[i] = null;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,133 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * A finite field Diffie-Hellman group, keys are g^x mod p
+ *
+ * g generates a subgroup of prime order q, so exponents beyond q add no
+ * security, only cost. Private keys are drawn uniformly from [2, q-2] when
+ * q is short (160 bits for RFC 5114) and otherwise uniformly from
+ * [2, 2^bits - 1] for the group's short length (the RFC 7919 minimum for
+ * the safe primes). No bit is forced, a key of n bits has the full n bits
+ * of entropy and only about half of them are exactly n bits long.
+ * -Ddhke.exponentBits=[bits] sets the length for every group, capped at
+ * the length of q, and -Ddhke.exponentBits=0 restores the original
+ * generation of this project, P * random long / Long.MAX_VALUE.
+ * Keys are ephemeral, used for a single exchange, so the peer's key is
+ * not checked to lie in the subgroup (RFC 2785 section 4).
+ */
+public final class DhGroup extends Group {
+    private static final Integer CONFIGURED_BITS = Integer.getInteger("dhke.exponentBits");
+    private final BigInteger p;
+    private final BigInteger g;
+    private final BigInteger q;
+    private final BigInteger pMinusOne;
+    private final BigInteger qMinusOne;
+    private final boolean original;
+    private final int exponentBits;
+    private final int width;
+    private volatile FixedBaseExp table;
+
+    /**
+     * @param id the id sent on the wire
+     * @param name the name used in the configuration
+     * @param p the prime
+     * @param g the generator
+     * @param q the order of the subgroup of g, null for (p - 1) / 2 of a safe prime
+     * @param exponentBits the length of private keys unless configured,
+     *                     at least the length of q for exponents in [1, q-1]
+     */
+    DhGroup(int id, String name, BigInteger p, BigInteger g, BigInteger q, int exponentBits) {
+        super(id, name);
+        this.p = p;
+        this.g = g;
+        this.pMinusOne = p.subtract(BigInteger.ONE);
+        if (q == null) {
+            this.q = pMinusOne.shiftRight(1);
+        } else if (g.modPow(q, p).equals(BigInteger.ONE)) {
+            this.q = q;
+        } else {
+            throw new IllegalArgumentException(name + ": g does not generate a subgroup of order q");
+        }
+        this.qMinusOne = this.q.subtract(BigInteger.ONE);
+        int bits = CONFIGURED_BITS == null ? exponentBits : CONFIGURED_BITS;
+        this.original = bits <= 0;
+        this.exponentBits = Math.min(bits, this.q.bitLength());
+        this.width = (p.bitLength() + 7) >>> 3;
+    }
+
+    /**
+     * @return the prime
+     */
+    public BigInteger p() {
+        return p;
+    }
+
+    /**
+     * @return the generator
+     */
+    public BigInteger g() {
+        return g;
+    }
+
+    /**
+     * @return the order of the subgroup generated by g
+     */
+    public BigInteger q() {
+        return q;
+    }
+
+    @Override
+    public int keyWidth() {
+        return width;
+    }
+
+    @Override
+    public BigInteger generatePrivateKey() {
+        if (original) {
+            BigInteger randomLong = BigInteger.valueOf(Entropy.nextLong());
+            BigInteger midState = p.multiply(randomLong);
+            return midState.divideAndRemainder(BigInteger.valueOf(Long.MAX_VALUE))[0];
+        }
+        BigInteger x;
+        if (exponentBits < q.bitLength()) {
+            // uniform in [2, 2^bits - 1], 0 and 1 are the only draws rejected
+            do {
+                x = new BigInteger(exponentBits, random);
+            } while (x.compareTo(BigInteger.TWO) < 0);
+            return x;
+        }
+        // uniform in [2, q-2] by rejection, at most half of the draws are rejected
+        do {
+            x = new BigInteger(q.bitLength(), random);
+        } while (x.compareTo(BigInteger.TWO) < 0 || x.compareTo(qMinusOne) >= 0);
+        return x;
+    }
+
+    @Override
+    public BigInteger publicKey(BigInteger privateKey) {
+        return table().pow(privateKey);
+    }
+
+    @Override
+    public BigInteger sharedSecret(BigInteger peerPublicKey, BigInteger privateKey) {
+        // 1 and p - 1 would reveal the secret, larger values are not residues
+        if (peerPublicKey.compareTo(BigInteger.ONE) <= 0 || peerPublicKey.compareTo(pMinusOne) >= 0)
+            throw new IllegalArgumentException("Public key out of range");
+        return Montgomery.modPow(peerPublicKey, privateKey, p);
+    }
+
+    /**
+     * The table of powers of g is built on first use, only for the
+     * exponent length the group generates
+     */
+    private FixedBaseExp table() {
+        FixedBaseExp t = table;
+        if (t == null) {
+            t = original ? FixedBaseExp.of(g, p) : FixedBaseExp.of(g, p, exponentBits);
+            table = t;
+        }
+        return t;
+    }
+}
@@ -0,0 +1,190 @@
+package crypto;
+
+import java.security.DrbgParameters;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The random numbers of key generation and session tickets
+ *
+ * A fixed number of stripes, a power of two from 4 per processor, each own
+ * a DRBG behind its own lock and a thread always uses the stripe picked by
+ * its id. So threads rarely share a lock and no thread pays for a generator
+ * of its own, which matters when every connection runs on a new thread.
+ * Every stripe reads its generator in bulk into a buffer and hands out
+ * slices of it, and reseeds the generator from the system entropy source
+ * after -Ddhke.entropy.reseedBytes (default 1 MiB) or
+ * -Ddhke.entropy.reseedSeconds (default 600). The buffer holds
+ * -Ddhke.entropy.bufferSize bytes (default 1024).
+ */
+public final class Entropy {
+    private static final int BUFFER_SIZE = Math.max(64, Integer.getInteger("dhke.entropy.bufferSize", 1024));
+    private static final long RESEED_BYTES = Long.getLong("dhke.entropy.reseedBytes", 1 << 20);
+    private static final long RESEED_NANOS = Long.getLong("dhke.entropy.reseedSeconds", 600) * 1_000_000_000L;
+    private static final Stripe[] stripes;
+    private static final int mask;
+    private static final LongAdder reseeds = new LongAdder();
+    private static final SecureRandom random = new Facade();
+
+    static {
+        int size = Integer.highestOneBit(Math.max(1, 4 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * A generator with its buffer
+     */
+    private static final class Stripe {
+        private final SecureRandom generator;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+        private long generated;
+        private long seededAt = System.nanoTime();
+
+        Stripe(int index) {
+            generator = newGenerator(index);
+        }
+
+        synchronized void nextBytes(byte[] out, int offset, int length) {
+            while (length > 0) {
+                if (position == buffer.length)
+                    refill();
+                int n = Math.min(length, buffer.length - position);
+                System.arraycopy(buffer, position, out, offset, n);
+                // a handed out byte must not stay readable in the buffer
+                Arrays.fill(buffer, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private void refill() {
+            if (generated >= RESEED_BYTES || System.nanoTime() - seededAt >= RESEED_NANOS) {
+                try {
+                    generator.reseed();
+                    reseeds.increment();
+                } catch (UnsupportedOperationException e) {
+                    // a generator without reseeding reseeds itself
+                }
+                generated = 0;
+                seededAt = System.nanoTime();
+            }
+            generator.nextBytes(buffer);
+            generated += buffer.length;
+            position = 0;
+        }
+    }
+
+    /**
+     * A SecureRandom backed by the stripes, for APIs taking a Random
+     * such as new BigInteger(bits, random)
+     */
+    private static final class Facade extends SecureRandom {
+        private static final long serialVersionUID = 1L;
+
+        Facade() {
+            super(null, null);
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            Entropy.nextBytes(bytes);
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            // seeded from the system, called by the Random constructor
+        }
+
+        @Override
+        public void setSeed(byte[] seed) {
+            throw new UnsupportedOperationException("The entropy pool seeds itself");
+        }
+
+        @Override
+        public byte[] generateSeed(int numBytes) {
+            byte[] seed = new byte[numBytes];
+            Entropy.nextBytes(seed);
+            return seed;
+        }
+
+        @Override
+        public String toString() {
+            return getAlgorithm();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "dhke-entropy-pool";
+        }
+    }
+
+    private Entropy() {
+        // empty constructor
+    }
+
+    /**
+     * Fills the array with random bytes
+     * @param bytes the array to fill
+     */
+    public static void nextBytes(byte[] bytes) {
+        stripe().nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return a random long
+     */
+    public static long nextLong() {
+        byte[] bytes = new byte[8];
+        nextBytes(bytes);
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return a SecureRandom drawing from the pool, safe to share between threads
+     */
+    public static SecureRandom random() {
+        return random;
+    }
+
+    /**
+     * @return number of reseeds so far, for statistics
+     */
+    public static long reseeds() {
+        return reseeds.sum();
+    }
+
+    /**
+     * @return the stripe of the calling thread
+     */
+    private static Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        // spread consecutive thread ids over the stripes
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return stripes[h & mask];
+    }
+
+    /**
+     * A DRBG of 256 bits strength, the platform default if there is none
+     * @param index personalizes the generator of every stripe
+     */
+    private static SecureRandom newGenerator(int index) {
+        try {
+            return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(256,
+                    DrbgParameters.Capability.RESEED_ONLY, ("dhke-entropy-" + index).getBytes()));
+        } catch (GeneralSecurityException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exponentiation with a base and modulus that never change
+ *
+ * The table holds g^(d * 2^(w*i)) mod p for every window i of the exponent
+ * and every digit d of w bits, so g^x is only one multiplication per window
+ * of x and no squaring at all.
+ * The table is built once and then shared by all threads, the entries are kept
+ * in Montgomery form so the multiplications run in the thread's workspace.
+ */
+public final class FixedBaseExp {
+    private static final Map<List<BigInteger>, FixedBaseExp> tables = new ConcurrentHashMap<>();
+    private final BigInteger g;
+    private final BigInteger p;
+    private final int window;
+    private final int maxBits;
+    private final Montgomery engine;
+    /** g mod p in limbs, the base of exponents longer than the table */
+    private final long[] base;
+    private final long[][][] table;
+
+    /**
+     * @param g the fixed base
+     * @param p the fixed modulus
+     * @param window number of exponent bits consumed per multiplication
+     * @param maxBits the longest exponent covered by the table
+     */
+    private FixedBaseExp(BigInteger g, BigInteger p, int window, int maxBits) {
+        this.g = g;
+        this.p = p;
+        this.window = window;
+        this.maxBits = maxBits;
+        this.engine = Montgomery.of(p);
+        int windows = (maxBits + window - 1) / window;
+        int digits = 1 << window;
+        int n = engine.limbs();
+        long[] t = engine.workspace().t;
+        table = new long[windows][digits][];
+        // g^(2^(w*i)) is the first entry of every row
+        this.base = Montgomery.toLimbs(g.mod(p), n);
+        long[] rowBase = new long[n];
+        engine.toMontgomery(base, rowBase);
+        for (int i = 0; i < windows; i++) {
+            table[i][1] = rowBase;
+            for (int d = 2; d < digits; d++) {
+                table[i][d] = new long[n];
+                engine.mul(table[i][d - 1], rowBase, table[i][d], t);
+            }
+            long[] next = new long[n];
+            engine.mul(table[i][digits - 1], rowBase, next, t);
+            rowBase = next;
+        }
+    }
+
+    /**
+     * Returns the table for the given base and modulus building it on first use
+     * The window size is taken from the dhke.fixedBaseWindow property (default 7)
+     * @param g the base
+     * @param p the modulus
+     * @return the shared table
+     */
+    public static FixedBaseExp of(BigInteger g, BigInteger p) {
+        return of(g, p, p.bitLength());
+    }
+
+    /**
+     * Returns the table for exponents of at most maxBits, longer
+     * exponents fall back to BigInteger.modPow
+     * @param g the base
+     * @param p the modulus
+     * @param maxBits the longest exponent covered by the table
+     * @return the shared table
+     */
+    public static FixedBaseExp of(BigInteger g, BigInteger p, int maxBits) {
+        return tables.computeIfAbsent(Arrays.asList(g, p, BigInteger.valueOf(maxBits)),
+                k -> new FixedBaseExp(g, p, Math.max(1, Math.min(12, Integer.getInteger("dhke.fixedBaseWindow", 7))), maxBits));
+    }
+
+    /**
+     * Calculates g^x mod p
+     * @param x the exponent
+     * @return the same value as g.modPow(x, p)
+     */
+    public BigInteger pow(BigInteger x) {
+        if (x.signum() < 0)
+            return pow(x.negate()).modInverse(p);
+        if (x.bitLength() > maxBits)
+            return g.modPow(x, p);
+        Montgomery.Workspace w = engine.workspace();
+        long[] result = new long[engine.limbs()];
+        Montgomery.toLimbs(x, w.e);
+        pow(w, w.e, result);
+        return Montgomery.fromLimbs(result);
+    }
+
+    /**
+     * Calculates g^x mod p without allocating, exponents longer
+     * than the table are computed by the engine's modPow
+     * @param x the exponent, little endian limbs of any length
+     * @param result receives the result, as many limbs as p
+     */
+    public void pow(long[] x, long[] result) {
+        if (Montgomery.bitLength(x) > maxBits)
+            engine.modPow(base, x, result);
+        else
+            pow(engine.workspace(), x, result);
+    }
+
+    private void pow(Montgomery.Workspace w, long[] x, long[] result) {
+        long[] acc = w.acc;
+        boolean empty = true;
+        for (int i = 0, bit = 0; bit < maxBits; i++, bit += window) {
+            int digit = 0;
+            for (int j = window - 1; j >= 0; j--) {
+                digit = (digit << 1) | Montgomery.bit(x, bit + j);
+            }
+            if (digit == 0)
+                continue;
+            if (empty) {
+                System.arraycopy(table[i][digit], 0, acc, 0, acc.length);
+                empty = false;
+            } else {
+                engine.mul(acc, table[i][digit], acc, w.t);
+            }
+        }
+        if (empty) {
+            Arrays.fill(result, 0);
+            result[0] = 1;
+        } else {
+            engine.fromMontgomery(acc, result);
+        }
+    }
+}
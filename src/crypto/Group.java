@@ -0,0 +1,194 @@
+package crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A group for the key agreement, known to client and server by its id
+ *
+ * Keys of every group are non negative numbers so they travel in the same
+ * frames: DH groups use g^x mod p, X25519 uses the u coordinate of the
+ * curve point. The registry lists the groups in the default order of
+ * preference: X25519, the RFC 7919 groups from the cheapest, and last the
+ * RFC 5114 group. With 160-bit exponents that one has the cheapest
+ * handshake, but at about 80 bits of security it is only kept for clients
+ * that do not negotiate.
+ */
+public abstract class Group {
+    /** The RFC 5114 1024-bit MODP group with a 160-bit subgroup, the group of every exchange without negotiation */
+    public static final DhGroup MODP_1024 = new DhGroup(1, "modp1024",
+            new BigInteger("B10B8F96A080E01DDE92DE5EAE5D54EC52C99FBCFB06A3C69A6A9DCA52D23B616073E28675A23D189838EF1E2EE652C013ECB4AEA906112324975C3CD49B83BFACCBDD7D90C4BD7098488E9C219A73724EFFD6FAE5644738FAA31A4FF55BCCC0A151AF5F0DC8B4BD45BF37DF365C1A65E68CFDA76D4DA708DF1FB2BC2E4A4371", 16),
+            new BigInteger("A4D1CBD5C3FD34126765A442EFB99905F8104DD258AC507FD6406CFF14266D31266FEA1E5C41564B777E690F5504F213160217B4B01B886A5E91547F9E2749F4D7FBD7D3B9A92EE1909D0D2263F80A76A6A24C087A091F531DBF0A0169B6A28AD662A4D18E73AFA32D779D5918D08BC8858F4DCEF97C2A24855E6EEB22B3B2E5", 16),
+            new BigInteger("F518AA8781A8DF278ABA4E7D64B7CB9D49462353", 16), 160);
+    /** RFC 7919 ffdhe2048, exponents of 225 bits */
+    public static final DhGroup FFDHE_2048 = new DhGroup(2, "ffdhe2048", new BigInteger(
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+            + "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+            + "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+            + "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+            + "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+            + "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+            + "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+            + "C58EF1837D1683B2C6F34A26C1B2EFFA886B423861285C97FFFFFFFFFFFFFFFF", 16),
+            BigInteger.TWO, null, 225);
+    /** RFC 7919 ffdhe3072, exponents of 275 bits */
+    public static final DhGroup FFDHE_3072 = new DhGroup(3, "ffdhe3072", new BigInteger(
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+            + "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+            + "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+            + "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+            + "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+            + "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+            + "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+            + "C58EF1837D1683B2C6F34A26C1B2EFFA886B4238611FCFDCDE355B3B6519035B"
+            + "BC34F4DEF99C023861B46FC9D6E6C9077AD91D2691F7F7EE598CB0FAC186D91C"
+            + "AEFE130985139270B4130C93BC437944F4FD4452E2D74DD364F2E21E71F54BFF"
+            + "5CAE82AB9C9DF69EE86D2BC522363A0DABC521979B0DEADA1DBF9A42D5C4484E"
+            + "0ABCD06BFA53DDEF3C1B20EE3FD59D7C25E41D2B66C62E37FFFFFFFFFFFFFFFF", 16),
+            BigInteger.TWO, null, 275);
+    /** RFC 7919 ffdhe4096, exponents of 325 bits */
+    public static final DhGroup FFDHE_4096 = new DhGroup(4, "ffdhe4096", new BigInteger(
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695"
+            + "A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617A"
+            + "D3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935"
+            + "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE73530ACCA4F483A797A"
+            + "BC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4"
+            + "AE56EDE76372BB190B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61"
+            + "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+            + "C58EF1837D1683B2C6F34A26C1B2EFFA886B4238611FCFDCDE355B3B6519035B"
+            + "BC34F4DEF99C023861B46FC9D6E6C9077AD91D2691F7F7EE598CB0FAC186D91C"
+            + "AEFE130985139270B4130C93BC437944F4FD4452E2D74DD364F2E21E71F54BFF"
+            + "5CAE82AB9C9DF69EE86D2BC522363A0DABC521979B0DEADA1DBF9A42D5C4484E"
+            + "0ABCD06BFA53DDEF3C1B20EE3FD59D7C25E41D2B669E1EF16E6F52C3164DF4FB"
+            + "7930E9E4E58857B6AC7D5F42D69F6D187763CF1D5503400487F55BA57E31CC7A"
+            + "7135C886EFB4318AED6A1E012D9E6832A907600A918130C46DC778F971AD0038"
+            + "092999A333CB8B7A1A1DB93D7140003C2A4ECEA9F98D0ACC0A8291CDCEC97DCF"
+            + "8EC9B55A7F88A46B4DB5A851F44182E1C68A007E5E655F6AFFFFFFFFFFFFFFFF", 16),
+            BigInteger.TWO, null, 325);
+    /** RFC 7748 X25519 through the JDK's XDH KeyAgreement */
+    public static final Group X25519 = new XdhGroup(5, "x25519");
+
+    private static final List<Group> ALL = Collections.unmodifiableList(Arrays.asList(
+            X25519, FFDHE_2048, FFDHE_3072, FFDHE_4096, MODP_1024));
+    /** The entropy pool, shared by all groups */
+    static final SecureRandom random = Entropy.random();
+    private final byte id;
+    private final String name;
+
+    Group(int id, String name) {
+        this.id = (byte) id;
+        this.name = name;
+    }
+
+    /**
+     * @return the id sent on the wire
+     */
+    public final byte id() {
+        return id;
+    }
+
+    /**
+     * @return the name used in the configuration
+     */
+    public final String name() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @return number of bytes every public key is padded to
+     */
+    public abstract int keyWidth();
+
+    /**
+     * @return a fresh private key
+     */
+    public abstract BigInteger generatePrivateKey();
+
+    /**
+     * @param privateKey a private key of this group
+     * @return the public key sent to the peer
+     */
+    public abstract BigInteger publicKey(BigInteger privateKey);
+
+    /**
+     * @param peerPublicKey the public key received from the peer
+     * @param privateKey the own private key
+     * @return the shared secret, the same on both sides
+     * @throws IllegalArgumentException if the public key is not valid in this group
+     */
+    public abstract BigInteger sharedSecret(BigInteger peerPublicKey, BigInteger privateKey);
+
+    /**
+     * @return every supported group in the default order of preference
+     */
+    public static List<Group> all() {
+        return ALL;
+    }
+
+    /**
+     * @param id the id received on the wire
+     * @return the group or null if it is unknown
+     */
+    public static Group byId(int id) {
+        for (Group group : ALL) {
+            if (group.id == id)
+                return group;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a preference list such as "x25519,ffdhe2048"
+     * @param names comma separated group names, null for every group
+     * @return the groups in the given order
+     * @throws IllegalArgumentException if a name is unknown or nothing is listed
+     */
+    public static List<Group> parse(String names) {
+        if (names == null)
+            return ALL;
+        List<Group> groups = new ArrayList<>();
+        for (String name : names.split(",")) {
+            String wanted = name.trim().toLowerCase(Locale.ROOT);
+            if (wanted.isEmpty())
+                continue;
+            Group found = null;
+            for (Group group : ALL) {
+                if (group.name.equals(wanted))
+                    found = group;
+            }
+            if (found == null)
+                throw new IllegalArgumentException("Unknown group: " + name);
+            if (!groups.contains(found))
+                groups.add(found);
+        }
+        if (groups.isEmpty())
+            throw new IllegalArgumentException("No group configured");
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Picks the first preferred group the peer offered
+     * @param preferred own groups in order of preference
+     * @param offered ids of the groups the peer supports
+     * @return the agreed group or null if there is none
+     */
+    public static Group negotiate(List<Group> preferred, byte[] offered) {
+        for (Group group : preferred) {
+            for (byte id : offered) {
+                if (group.id == id)
+                    return group;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,69 @@
+package crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869), derives the keys of the data channel
+ * from a shared secret
+ */
+public final class Hkdf {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+        // empty constructor
+    }
+
+    /**
+     * @param salt a non secret random value, may be empty
+     * @param secret the input keying material
+     * @return the pseudorandom key
+     */
+    public static byte[] extract(byte[] salt, byte[] secret) {
+        Mac mac = mac(salt.length == 0 ? new byte[HASH_LENGTH] : salt);
+        return mac.doFinal(secret);
+    }
+
+    /**
+     * @param prk the pseudorandom key returned by extract
+     * @param info the label of the derived key
+     * @param length the number of bytes, at most 255 * 32
+     * @return the derived key
+     */
+    public static byte[] expand(byte[] prk, String info, int length) {
+        if (length > 255 * HASH_LENGTH)
+            throw new IllegalArgumentException("HKDF output too long");
+        Mac mac = mac(prk);
+        byte[] label = info.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        for (int i = 0, offset = 0; offset < length; i++) {
+            mac.update(block);
+            mac.update(label);
+            mac.update((byte) (i + 1));
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, out, offset, n);
+            offset += n;
+        }
+        return out;
+    }
+
+    /**
+     * @param key the HMAC key
+     * @return a fresh HMAC-SHA256 instance
+     */
+    private static Mac mac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every Java platform supports HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package crypto;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Modular arithmetic for a fixed odd modulus in Montgomery form
+ *
+ * Numbers are little endian arrays of 64 bit limbs. Every thread gets its own
+ * workspace so an exponentiation does not allocate once the workspace exists,
+ * only the BigInteger compatibility methods allocate for the input and result.
+ */
+public final class Montgomery {
+    private static final Map<BigInteger, Montgomery> engines = new ConcurrentHashMap<>();
+    private static final int WINDOW = 5;
+    /**
+     * The JDK's BigInteger.modPow runs on intrinsic Montgomery multiplication
+     * and is 4 to 5 times faster (crypto.ModPowBenchmark), this engine is chosen
+     * with -Ddhke.modPowEngine=montgomery when allocation matters more than raw speed
+     */
+    private static final boolean PREFERRED = "montgomery".equals(System.getProperty("dhke.modPowEngine"));
+    private final BigInteger modulus;
+    private final int n;
+    private final long[] p;
+    private final long pInv;
+    private final long[] r2;
+    private final long[] one;
+    private final ThreadLocal<Workspace> workspaces;
+
+    /**
+     * The buffers used by one thread
+     */
+    final class Workspace {
+        final long[] t = new long[n + 2];
+        final long[][] table = new long[1 << WINDOW][n];
+        final long[] acc = new long[n];
+        final long[] x = new long[n];
+        final long[] e = new long[n];
+    }
+
+    /**
+     * @param modulus an odd modulus
+     */
+    private Montgomery(BigInteger modulus) {
+        if (modulus.signum() <= 0 || !modulus.testBit(0))
+            throw new IllegalArgumentException("Montgomery modulus must be odd and positive");
+        this.modulus = modulus;
+        this.n = (modulus.bitLength() + 63) >>> 6;
+        this.p = toLimbs(modulus, n);
+        // Newton iteration for p^-1 mod 2^64, every step doubles the correct bits
+        long inv = p[0];
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - p[0] * inv;
+        }
+        this.pInv = -inv;
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(128 * n).mod(modulus), n);
+        this.one = new long[n];
+        this.one[0] = 1;
+        this.workspaces = ThreadLocal.withInitial(Workspace::new);
+    }
+
+    /**
+     * Returns the engine for the modulus creating it on first use
+     * @param modulus an odd modulus
+     * @return the shared engine
+     */
+    public static Montgomery of(BigInteger modulus) {
+        return engines.computeIfAbsent(modulus, Montgomery::new);
+    }
+
+    /**
+     * Calculates base^exponent mod modulus with the configured engine
+     * @param base the base
+     * @param exponent the exponent
+     * @param modulus the modulus, odd when the Montgomery engine is configured
+     * @return the result
+     */
+    public static BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus) {
+        if (PREFERRED)
+            return of(modulus).modPow(base, exponent);
+        return base.modPow(exponent, modulus);
+    }
+
+    /**
+     * @return number of 64 bit limbs of a residue
+     */
+    public int limbs() {
+        return n;
+    }
+
+    /**
+     * @return the workspace of the calling thread
+     */
+    Workspace workspace() {
+        return workspaces.get();
+    }
+
+    /**
+     * Calculates base^exponent mod p, same as base.modPow(exponent, p)
+     * @param base the base
+     * @param exponent the exponent
+     * @return the result
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exponent) {
+        if (exponent.signum() < 0)
+            return modPow(base, exponent.negate()).modInverse(modulus);
+        if (base.signum() < 0 || base.compareTo(modulus) >= 0)
+            base = base.mod(modulus);
+        Workspace w = workspaces.get();
+        long[] e = exponent.bitLength() > 64 * n ? new long[(exponent.bitLength() + 63) >>> 6] : w.e;
+        long[] result = new long[n];
+        toLimbs(base, w.x);
+        toLimbs(exponent, e);
+        modPow(w, w.x, e, result);
+        return fromLimbs(result);
+    }
+
+    /**
+     * Calculates base^exponent mod p without allocating
+     * @param base the base smaller than p, n limbs
+     * @param exponent the exponent, little endian limbs of any length
+     * @param result receives the result, n limbs, may be the base
+     */
+    public void modPow(long[] base, long[] exponent, long[] result) {
+        modPow(workspaces.get(), base, exponent, result);
+    }
+
+    /**
+     * Walks the exponent from the top with a fixed window
+     */
+    private void modPow(Workspace w, long[] base, long[] exponent, long[] result) {
+        long[][] table = w.table;
+        long[] acc = w.acc;
+        long[] t = w.t;
+        // table[d] = base^d in Montgomery form
+        mul(one, r2, table[0], t);
+        mul(base, r2, table[1], t);
+        for (int d = 2; d < table.length; d++) {
+            mul(table[d - 1], table[1], table[d], t);
+        }
+        int bits = bitLength(exponent);
+        System.arraycopy(table[0], 0, acc, 0, n);
+        int top = ((bits + WINDOW - 1) / WINDOW) * WINDOW;
+        for (int bit = top - WINDOW; bit >= 0; bit -= WINDOW) {
+            if (bit != top - WINDOW) {
+                for (int s = 0; s < WINDOW; s++) {
+                    mul(acc, acc, acc, t);
+                }
+            }
+            int digit = 0;
+            for (int j = WINDOW - 1; j >= 0; j--) {
+                digit = (digit << 1) | bit(exponent, bit + j);
+            }
+            if (digit != 0)
+                mul(acc, table[digit], acc, t);
+        }
+        // leave Montgomery form
+        mul(acc, one, result, t);
+    }
+
+    /**
+     * Montgomery product a * b * R^-1 mod p (CIOS)
+     * @param a first factor, n limbs
+     * @param b second factor, n limbs
+     * @param out receives the product, may be a or b
+     * @param t scratch of n + 2 limbs
+     */
+    void mul(long[] a, long[] b, long[] out, long[] t) {
+        final int n = this.n;
+        final long[] p = this.p;
+        for (int i = 0; i < n + 2; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            long bi = b[i];
+            long c = 0;
+            for (int j = 0; j < n; j++) {
+                long aj = a[j];
+                long lo = aj * bi;
+                long hi = unsignedMultiplyHigh(aj, bi);
+                long sum = lo + c;
+                hi += carry(lo, c, sum);
+                long tj = t[j];
+                lo = sum + tj;
+                hi += carry(sum, tj, lo);
+                t[j] = lo;
+                c = hi;
+            }
+            long s = t[n] + c;
+            t[n + 1] = carry(t[n], c, s);
+            t[n] = s;
+
+            long m = t[0] * pInv;
+            long lo = m * p[0];
+            long hi = unsignedMultiplyHigh(m, p[0]);
+            c = hi + carry(lo, t[0], lo + t[0]);
+            for (int j = 1; j < n; j++) {
+                long pj = p[j];
+                lo = m * pj;
+                hi = unsignedMultiplyHigh(m, pj);
+                long sum = lo + c;
+                hi += carry(lo, c, sum);
+                long tj = t[j];
+                lo = sum + tj;
+                hi += carry(sum, tj, lo);
+                t[j - 1] = lo;
+                c = hi;
+            }
+            s = t[n] + c;
+            t[n - 1] = s;
+            t[n] = t[n + 1] + carry(t[n], c, s);
+        }
+        // the result is below 2p, subtract p once if needed
+        if (t[n] != 0 || !lessThanModulus(t)) {
+            long borrow = 0;
+            for (int j = 0; j < n; j++) {
+                long tj = t[j];
+                long d = tj - p[j] - borrow;
+                borrow = (Long.compareUnsigned(tj, p[j]) < 0 || (borrow != 0 && tj == p[j])) ? 1 : 0;
+                out[j] = d;
+            }
+        } else {
+            System.arraycopy(t, 0, out, 0, n);
+        }
+    }
+
+    /**
+     * Converts a residue into Montgomery form
+     * @param a a number smaller than p
+     * @param out receives a * R mod p
+     */
+    void toMontgomery(long[] a, long[] out) {
+        mul(a, r2, out, workspaces.get().t);
+    }
+
+    /**
+     * Converts a residue out of Montgomery form
+     * @param a a number in Montgomery form
+     * @param out receives a * R^-1 mod p
+     */
+    void fromMontgomery(long[] a, long[] out) {
+        mul(a, one, out, workspaces.get().t);
+    }
+
+    /**
+     * @param t the first n limbs are compared
+     * @return if t is smaller than p
+     */
+    private boolean lessThanModulus(long[] t) {
+        for (int j = n - 1; j >= 0; j--) {
+            if (t[j] != p[j])
+                return Long.compareUnsigned(t[j], p[j]) < 0;
+        }
+        return false;
+    }
+
+    /**
+     * @param limbs little endian limbs
+     * @return the number of significant bits
+     */
+    static int bitLength(long[] limbs) {
+        for (int j = limbs.length - 1; j >= 0; j--) {
+            if (limbs[j] != 0)
+                return j * 64 + 64 - Long.numberOfLeadingZeros(limbs[j]);
+        }
+        return 0;
+    }
+
+    /**
+     * @param limbs little endian limbs
+     * @param index the bit to read
+     * @return the bit as 0 or 1
+     */
+    static int bit(long[] limbs, int index) {
+        if ((index >>> 6) >= limbs.length)
+            return 0;
+        return (int) (limbs[index >>> 6] >>> (index & 63)) & 1;
+    }
+
+    /**
+     * Carry out of an unsigned addition, without branching
+     * @param a first operand
+     * @param b second operand
+     * @param sum a + b
+     * @return 1 if the addition overflowed else 0
+     */
+    private static long carry(long a, long b, long sum) {
+        return ((a & b) | ((a | b) & ~sum)) >>> 63;
+    }
+
+    /**
+     * The high 64 bits of the unsigned 128 bit product
+     */
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    /**
+     * @param value a non negative number
+     * @param limbs the number of limbs
+     * @return the little endian limbs of value
+     */
+    public static long[] toLimbs(BigInteger value, int limbs) {
+        long[] out = new long[limbs];
+        toLimbs(value, out);
+        return out;
+    }
+
+    /**
+     * @param value a non negative number that fits in out
+     * @param out receives the little endian limbs of value
+     */
+    public static void toLimbs(BigInteger value, long[] out) {
+        byte[] bytes = value.toByteArray();
+        for (int j = 0; j < out.length; j++) {
+            out[j] = 0;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int index = bytes.length - 1 - i;
+            if ((i >>> 3) < out.length)
+                out[i >>> 3] |= (bytes[index] & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+    /**
+     * @param limbs little endian limbs
+     * @return the non negative number they represent
+     */
+    public static BigInteger fromLimbs(long[] limbs) {
+        byte[] bytes = new byte[limbs.length * 8 + 1];
+        for (int j = 0; j < limbs.length; j++) {
+            long limb = limbs[j];
+            for (int k = 0; k < 8; k++) {
+                bytes[bytes.length - 1 - (j * 8 + k)] = (byte) (limb >>> (k << 3));
+            }
+        }
+        return new BigInteger(bytes);
+    }
+}
@@ -0,0 +1,97 @@
+package crypto;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+
+/**
+ * An RFC 7748 curve through the JDK's XDH KeyAgreement
+ *
+ * A public key is the u coordinate of the point, the private key is the
+ * 32 byte scalar read as a big endian number and the shared secret is the
+ * u coordinate of the shared point. Every thread keeps its own KeyFactory
+ * and KeyAgreement so the provider lookup happens once.
+ */
+final class XdhGroup extends Group {
+    private static final int WIDTH = 32;
+    private static final BigInteger BASE_POINT = BigInteger.valueOf(9);
+    private static final BigInteger U_LIMIT = BigInteger.ONE.shiftLeft(255);
+    private final NamedParameterSpec params = NamedParameterSpec.X25519;
+    private final ThreadLocal<Engines> engines = ThreadLocal.withInitial(Engines::new);
+
+    /**
+     * The JCA objects used by one thread
+     */
+    private static final class Engines {
+        final KeyFactory keys;
+        final KeyAgreement agreement;
+
+        Engines() {
+            try {
+                keys = KeyFactory.getInstance("XDH");
+                agreement = KeyAgreement.getInstance("XDH");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("XDH is not available", e);
+            }
+        }
+    }
+
+    XdhGroup(int id, String name) {
+        super(id, name);
+    }
+
+    @Override
+    public int keyWidth() {
+        return WIDTH;
+    }
+
+    @Override
+    public BigInteger generatePrivateKey() {
+        byte[] scalar = new byte[WIDTH];
+        random.nextBytes(scalar);
+        return new BigInteger(1, scalar);
+    }
+
+    @Override
+    public BigInteger publicKey(BigInteger privateKey) {
+        return sharedSecret(BASE_POINT, privateKey);
+    }
+
+    @Override
+    public BigInteger sharedSecret(BigInteger peerPublicKey, BigInteger privateKey) {
+        if (peerPublicKey.signum() < 0 || peerPublicKey.compareTo(U_LIMIT) >= 0)
+            throw new IllegalArgumentException("Public key out of range");
+        Engines e = engines.get();
+        try {
+            e.agreement.init(e.keys.generatePrivate(new XECPrivateKeySpec(params, toBytes(privateKey))));
+            e.agreement.doPhase(e.keys.generatePublic(new XECPublicKeySpec(params, peerPublicKey)), true);
+            // the secret is the little endian u coordinate
+            byte[] secret = e.agreement.generateSecret();
+            for (int i = 0, j = secret.length - 1; i < j; i++, j--) {
+                byte b = secret[i];
+                secret[i] = secret[j];
+                secret[j] = b;
+            }
+            return new BigInteger(1, secret);
+        } catch (GeneralSecurityException ex) {
+            // a point of small order gives an all zero secret
+            throw new IllegalArgumentException("Invalid public key", ex);
+        }
+    }
+
+    /**
+     * @param value a private key
+     * @return its 32 bytes, big endian as generated
+     */
+    private static byte[] toBytes(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[WIDTH];
+        int length = Math.min(bytes.length, WIDTH);
+        System.arraycopy(bytes, bytes.length - length, fixed, WIDTH - length, length);
+        return fixed;
+    }
+}
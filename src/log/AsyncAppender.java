@@ -0,0 +1,145 @@
+package log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log events to the standard output on a background thread
+ *
+ * Logging threads put events into a bounded ring buffer without locking,
+ * each slot has a sequence number telling whether it is free for the
+ * producer claiming that position or full for the writer (a bounded queue
+ * after Dmitry Vyukov). When the ring is full the event is dropped and
+ * counted instead of blocking the caller, the writer reports the drops.
+ * The output is flushed whenever the ring runs empty.
+ */
+final class AsyncAppender {
+    static final AsyncAppender INSTANCE = new AsyncAppender(Integer.getInteger("dhke.log.bufferSize", 8192));
+    private static final long IDLE_NANOS = 10_000_000;
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile boolean idle;
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private final Thread writer;
+
+    /**
+     * @param capacity number of events the ring holds, rounded up to a power of two
+     */
+    private AsyncAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(this::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-flush"));
+    }
+
+    /**
+     * Queues an event, never blocks
+     * @param event the event to write
+     */
+    void append(Event event) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (difference < 0) {
+                // the writer has not freed this slot yet, the ring is full
+                dropped.increment();
+                return;
+            }
+        }
+        int index = (int) position & mask;
+        slots[index] = event;
+        sequences.set(index, position + 1);
+        if (idle)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Waits up to a second until every event queued so far is written
+     */
+    void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        LockSupport.unpark(writer);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(100_000);
+        }
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    /**
+     * The loop of the writer thread
+     */
+    private void write() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            Event event = poll();
+            if (event == null) {
+                long lost = dropped.sumThenReset();
+                synchronized (out) {
+                    if (lost > 0)
+                        out.println(lost + " log messages dropped, the log buffer was full");
+                    out.flush();
+                }
+                idle = true;
+                // check again, an append that saw idle unset has already published its event
+                if (!available())
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                idle = false;
+                continue;
+            }
+            line.setLength(0);
+            try {
+                event.format(line);
+            } catch (RuntimeException e) {
+                line.append(" (unable to format: ").append(e).append(')');
+            }
+            synchronized (out) {
+                out.println(line);
+            }
+        }
+    }
+
+    private boolean available() {
+        long position = head;
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    /**
+     * Takes the next event, only called by the writer
+     * @return the event or null when the ring is empty
+     */
+    private Event poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1)
+            return null;
+        Event event = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, position + slots.length);
+        head = position + 1;
+        return event;
+    }
+}
@@ -0,0 +1,51 @@
+package log;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * A queued log message, formatted only when it is written
+ */
+final class Event {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    private final long time;
+    private final Log.Level level;
+    private final String logger;
+    private final String thread;
+    private final String pattern;
+    private final Object[] args;
+
+    Event(long time, Log.Level level, String logger, String thread, String pattern, Object[] args) {
+        this.time = time;
+        this.level = level;
+        this.logger = logger;
+        this.thread = thread;
+        this.pattern = pattern;
+        this.args = args;
+    }
+
+    /**
+     * Appends the formatted line without the line separator
+     * @param out receives the line
+     */
+    void format(StringBuilder out) {
+        TIME.formatTo(Instant.ofEpochMilli(time), out);
+        out.append(' ').append(level);
+        if (level.name().length() < 5)
+            out.append(' ');
+        out.append(" [").append(thread).append("] ").append(logger).append(" - ");
+        int next = 0;
+        int from = 0;
+        int at;
+        while (next < args.length && (at = pattern.indexOf("{}", from)) >= 0) {
+            out.append(pattern, from, at).append(args[next++]);
+            from = at + 2;
+        }
+        out.append(pattern, from, pattern.length());
+        // an exception as the last argument without a {} adds its message
+        if (next < args.length && args[args.length - 1] instanceof Throwable)
+            out.append(": ").append(args[args.length - 1]);
+    }
+}
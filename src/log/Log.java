@@ -0,0 +1,137 @@
+package log;
+
+import java.util.Locale;
+
+/**
+ * A named logger writing through the asynchronous appender
+ *
+ * The level is shared by every logger and set with -Ddhke.log.level
+ * (ERROR, WARN, INFO, DEBUG or TRACE, default INFO). A disabled call costs
+ * a comparison, an enabled call only queues the pattern and the arguments,
+ * the message is formatted on the appender thread. Arguments replace the
+ * {} in the pattern in order.
+ *
+ * Key material must be passed wrapped with secret(), it is then rendered
+ * only while the level is TRACE and shows as [redacted] otherwise.
+ */
+public final class Log {
+    /**
+     * The levels from the most to the least important
+     */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    private static volatile Level threshold = parse(System.getProperty("dhke.log.level"), Level.INFO);
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param type the class logging
+     * @return the logger named after the class
+     */
+    public static Log get(Class<?> type) {
+        return new Log(type.getSimpleName());
+    }
+
+    /**
+     * @return the current level
+     */
+    public static Level level() {
+        return threshold;
+    }
+
+    /**
+     * @param level the least important level that is still written
+     */
+    public static void level(Level level) {
+        threshold = level;
+    }
+
+    /**
+     * Wraps key material so it is only rendered at TRACE
+     * @param value the sensitive value
+     * @return the argument to log instead of the value
+     */
+    public static Object secret(Object value) {
+        return new Secret(value);
+    }
+
+    /**
+     * Waits until every queued message is written
+     */
+    public static void flush() {
+        AsyncAppender.INSTANCE.flush();
+    }
+
+    /**
+     * @param level a level
+     * @return if messages of the level are written
+     */
+    public static boolean enabled(Level level) {
+        return level.ordinal() <= threshold.ordinal();
+    }
+
+    public void error(String pattern, Object... args) {
+        log(Level.ERROR, pattern, args);
+    }
+
+    public void warn(String pattern, Object... args) {
+        log(Level.WARN, pattern, args);
+    }
+
+    public void info(String pattern, Object... args) {
+        log(Level.INFO, pattern, args);
+    }
+
+    public void debug(String pattern, Object... args) {
+        log(Level.DEBUG, pattern, args);
+    }
+
+    public void trace(String pattern, Object... args) {
+        log(Level.TRACE, pattern, args);
+    }
+
+    /**
+     * Queues a message when its level is enabled
+     * @param level the level of the message
+     * @param pattern the message with a {} for every argument
+     * @param args the arguments, formatted later
+     */
+    public void log(Level level, String pattern, Object... args) {
+        if (!enabled(level))
+            return;
+        AsyncAppender.INSTANCE.append(new Event(System.currentTimeMillis(), level, name,
+                Thread.currentThread().getName(), pattern, args));
+    }
+
+    private static Level parse(String value, Level fallback) {
+        if (value == null)
+            return fallback;
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown log level: " + value);
+            return fallback;
+        }
+    }
+
+    /**
+     * A value rendered only at TRACE
+     */
+    static final class Secret {
+        private final Object value;
+
+        Secret(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return threshold == Level.TRACE ? String.valueOf(value) : "[redacted]";
+        }
+    }
+}
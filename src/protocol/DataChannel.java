@@ -0,0 +1,353 @@
+package protocol;
+
+import crypto.Hkdf;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * The encrypted data channel of an established session
+ *
+ * Every record is
+ * ciphertext length (4 bytes) | AES-256-GCM ciphertext with its 16 byte tag
+ * authenticated with the length as additional data. The plaintext of a
+ * record is a batch of messages, message length (4 bytes) | message, so
+ * small messages share one record and one cipher call. A record without
+ * messages closes the channel, a connection ending without one is
+ * reported as truncated.
+ *
+ * HKDF-SHA256 extracts a key from the session key with the nonces of the
+ * channel open and accept as salt, so a resumed session never reuses a
+ * key, and expands a key and an IV for each direction. The nonce of a
+ * record is the IV xor its sequence number (RFC 8446 section 5.3).
+ *
+ * Records are sealed from and opened into reusable direct buffers, sealed
+ * records are written with one gathering write when -Ddhke.channel.batch
+ * (default 4) of them wait or on flush. AES-GCM runs on the AES and
+ * carry-less multiplication intrinsics of HotSpot where the processor has
+ * them. -Ddhke.channel.recordSize (default 65536) sets the plaintext bytes
+ * a sender puts in a record, a receiver accepts up to MAX_RECORD_LENGTH.
+ * A channel is used by one thread at a time.
+ */
+public final class DataChannel {
+    public static final int NONCE_LENGTH = 32;
+    public static final int HEADER_LENGTH = 4;
+    public static final int TAG_LENGTH = 16;
+    public static final int RESUMPTION_KEY_LENGTH = 32;
+    public static final int MAX_RECORD_LENGTH = 1 << 18;
+    private static final int RECORD_SIZE = Math.max(64, Math.min(MAX_RECORD_LENGTH,
+            Integer.getInteger("dhke.channel.recordSize", 1 << 16)));
+    private static final int BATCH = Math.max(1, Integer.getInteger("dhke.channel.batch", 4));
+    /** Bytes sealed with one key, far below the AES-GCM limits of RFC 8446 section 5.5 */
+    private static final long KEY_LIMIT = 1L << 38;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final SecretKeySpec writeKey;
+    private final SecretKeySpec readKey;
+    private final byte[] writeIv;
+    private final byte[] readIv;
+    private final byte[] nonce = new byte[IV_LENGTH];
+    private final byte[] aad = new byte[HEADER_LENGTH];
+    private long writeSequence;
+    private long readSequence;
+    private long sealedBytes;
+    private final ByteBuffer plain = ByteBuffer.allocateDirect(RECORD_SIZE);
+    /** Header and ciphertext of every waiting record, in the order they are written */
+    private final ByteBuffer[] records = new ByteBuffer[2 * BATCH];
+    private int queued;
+    private ByteBuffer incoming = ByteBuffer.allocateDirect(HEADER_LENGTH + RECORD_SIZE + TAG_LENGTH);
+    private ByteBuffer received = ByteBuffer.allocateDirect(RECORD_SIZE);
+    private boolean closed;
+    private boolean peerClosed;
+
+    /**
+     * Derives the keys of the channel
+     * @param in the connection to read records from
+     * @param out the connection to write records to, gathering writes if it supports them
+     * @param sessionKey the established session key
+     * @param clientNonce the nonce of the channel open
+     * @param serverNonce the nonce of the channel accept
+     * @param client if this is the client end
+     */
+    public DataChannel(ReadableByteChannel in, WritableByteChannel out, BigInteger sessionKey,
+                       byte[] clientNonce, byte[] serverNonce, boolean client) {
+        this.in = in;
+        this.out = out;
+        byte[] salt = new byte[clientNonce.length + serverNonce.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        byte[] secret = magnitude(sessionKey);
+        byte[] prk = Hkdf.extract(salt, secret);
+        byte[] clientKey = Hkdf.expand(prk, "dhke client key", 32);
+        byte[] serverKey = Hkdf.expand(prk, "dhke server key", 32);
+        byte[] clientIv = Hkdf.expand(prk, "dhke client iv", IV_LENGTH);
+        byte[] serverIv = Hkdf.expand(prk, "dhke server iv", IV_LENGTH);
+        this.writeKey = new SecretKeySpec(client ? clientKey : serverKey, "AES");
+        this.readKey = new SecretKeySpec(client ? serverKey : clientKey, "AES");
+        this.writeIv = client ? clientIv : serverIv;
+        this.readIv = client ? serverIv : clientIv;
+        // the key specs hold their own copies
+        Arrays.fill(secret, (byte) 0);
+        Arrays.fill(prk, (byte) 0);
+        Arrays.fill(clientKey, (byte) 0);
+        Arrays.fill(serverKey, (byte) 0);
+        try {
+            this.sealer = Cipher.getInstance(CIPHER);
+            this.opener = Cipher.getInstance(CIPHER);
+        } catch (GeneralSecurityException e) {
+            // every Java platform supports AES-GCM
+            throw new IllegalStateException(e);
+        }
+        incoming.limit(0);
+        received.limit(0);
+    }
+
+    /**
+     * Adds a message to the current record, sealing the record first
+     * if the message does not fit in it
+     * @param message the bytes between position and limit, the position is moved to the limit
+     * @throws IOException if a full batch of records could not be written
+     * @throws IllegalArgumentException if the message does not fit in a record
+     */
+    public void send(ByteBuffer message) throws IOException {
+        if (closed)
+            throw new IllegalStateException("Channel closed");
+        int length = message.remaining();
+        if (length > RECORD_SIZE - 4)
+            throw new IllegalArgumentException("Message longer than " + (RECORD_SIZE - 4) + " bytes");
+        if (plain.remaining() < 4 + length)
+            seal();
+        plain.putInt(length);
+        plain.put(message);
+    }
+
+    /**
+     * Seals the current record and writes every waiting record
+     * @throws IOException if the connection fails
+     */
+    public void flush() throws IOException {
+        if (plain.position() > 0)
+            seal();
+        write();
+    }
+
+    /**
+     * Receives the next message, reading and opening records as needed
+     * @return the message, valid until the next receive, null once the peer closed the channel
+     * @throws EOFException if the connection ended without closing the channel
+     * @throws ProtocolException if a record is malformed or fails authentication
+     * @throws IOException if the connection fails
+     */
+    public ByteBuffer receive() throws IOException {
+        while (!received.hasRemaining()) {
+            if (peerClosed || !openRecord()) {
+                peerClosed = true;
+                return null;
+            }
+        }
+        if (received.remaining() < 4)
+            throw new ProtocolException("Malformed record");
+        int length = received.getInt();
+        if (length < 0 || length > received.remaining())
+            throw new ProtocolException("Malformed record");
+        ByteBuffer message = received.slice(received.position(), length);
+        received.position(received.position() + length);
+        return message;
+    }
+
+    /**
+     * @return if a message can be received without reading from the connection
+     */
+    public boolean hasBuffered() {
+        if (received.hasRemaining())
+            return true;
+        int available = incoming.remaining();
+        return available >= HEADER_LENGTH && available >= HEADER_LENGTH + incoming.getInt(incoming.position());
+    }
+
+    /**
+     * Flushes the waiting messages and tells the peer no more follow,
+     * the connection itself stays open
+     * @throws IOException if the connection fails
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        if (plain.position() > 0)
+            seal();
+        // the empty record
+        seal();
+        write();
+        closed = true;
+    }
+
+    /**
+     * Encrypts the current record into the next free slot of the batch,
+     * writing the batch first when it is full
+     * @throws IOException if the batch could not be written
+     */
+    private void seal() throws IOException {
+        if (queued == BATCH)
+            write();
+        int slot = 2 * queued;
+        if (records[slot] == null) {
+            records[slot] = ByteBuffer.allocateDirect(HEADER_LENGTH);
+            records[slot + 1] = ByteBuffer.allocateDirect(RECORD_SIZE + TAG_LENGTH);
+        }
+        plain.flip();
+        int length = plain.remaining() + TAG_LENGTH;
+        sealedBytes += length;
+        if (sealedBytes > KEY_LIMIT)
+            throw new IOException("Key usage limit of the channel reached, open a new channel");
+        ByteBuffer header = records[slot];
+        ByteBuffer record = records[slot + 1];
+        header.clear();
+        header.putInt(length).flip();
+        record.clear();
+        try {
+            init(sealer, Cipher.ENCRYPT_MODE, writeKey, writeIv, writeSequence++, length);
+            sealer.doFinal(plain, record);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to seal a record", e);
+        }
+        record.flip();
+        plain.clear();
+        queued++;
+    }
+
+    /**
+     * Writes the waiting records with gathering writes
+     * @throws IOException if the connection fails
+     */
+    private void write() throws IOException {
+        if (queued == 0)
+            return;
+        int count = 2 * queued;
+        ByteBuffer last = records[count - 1];
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) out;
+            while (last.hasRemaining()) {
+                gathering.write(records, 0, count);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (records[i].hasRemaining()) {
+                    out.write(records[i]);
+                }
+            }
+        }
+        queued = 0;
+    }
+
+    /**
+     * Reads the next record and decrypts its messages
+     * @return false if it was the empty record closing the channel
+     * @throws IOException if the connection fails or the record is not valid
+     */
+    private boolean openRecord() throws IOException {
+        fill(HEADER_LENGTH);
+        int length = incoming.getInt(incoming.position());
+        if (length < TAG_LENGTH || length > MAX_RECORD_LENGTH + TAG_LENGTH)
+            throw new ProtocolException("Invalid record length " + length);
+        fill(HEADER_LENGTH + length);
+        if (received.capacity() < length - TAG_LENGTH)
+            received = ByteBuffer.allocateDirect(MAX_RECORD_LENGTH);
+        int start = incoming.position() + HEADER_LENGTH;
+        int limit = incoming.limit();
+        received.clear();
+        incoming.position(start).limit(start + length);
+        try {
+            init(opener, Cipher.DECRYPT_MODE, readKey, readIv, readSequence++, length);
+            opener.doFinal(incoming, received);
+        } catch (AEADBadTagException e) {
+            throw new ProtocolException("Record authentication failed");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to open a record", e);
+        } finally {
+            incoming.limit(limit).position(start + length);
+        }
+        received.flip();
+        return received.hasRemaining();
+    }
+
+    /**
+     * Reads until the given number of bytes is buffered
+     * @param needed the bytes needed from the position of the incoming buffer
+     * @throws EOFException if the connection ends first
+     */
+    private void fill(int needed) throws IOException {
+        if (incoming.capacity() < needed) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(HEADER_LENGTH + MAX_RECORD_LENGTH + TAG_LENGTH);
+            larger.put(incoming).flip();
+            incoming = larger;
+        }
+        while (incoming.remaining() < needed) {
+            incoming.compact();
+            int n = in.read(incoming);
+            incoming.flip();
+            if (n < 0)
+                throw new EOFException("Data channel truncated");
+        }
+    }
+
+    /**
+     * Initializes the cipher for the record with the given sequence number
+     */
+    private void init(Cipher cipher, int mode, SecretKeySpec key, byte[] iv, long sequence, int length)
+            throws GeneralSecurityException {
+        System.arraycopy(iv, 0, nonce, 0, IV_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            nonce[IV_LENGTH - 1 - i] ^= (byte) (sequence >>> (8 * i));
+        }
+        cipher.init(mode, key, new GCMParameterSpec(8 * TAG_LENGTH, nonce));
+        aad[0] = (byte) (length >>> 24);
+        aad[1] = (byte) (length >>> 16);
+        aad[2] = (byte) (length >>> 8);
+        aad[3] = (byte) length;
+        cipher.updateAAD(aad);
+    }
+
+    /**
+     * Derives the secret a session resumed with the ticket continues with,
+     * both ends use it as the session key after the resumption, so a stored
+     * ticket never holds the secret of the key exchange itself
+     * @param sessionKey the key of the full exchange
+     * @param ticket the ticket the server issued with it
+     * @return RESUMPTION_KEY_LENGTH bytes, the caller wipes them after use
+     */
+    public static byte[] resumptionSecret(BigInteger sessionKey, byte[] ticket) {
+        byte[] secret = magnitude(sessionKey);
+        byte[] prk = Hkdf.extract(ticket, secret);
+        Arrays.fill(secret, (byte) 0);
+        byte[] resumption = Hkdf.expand(prk, "dhke resumption", RESUMPTION_KEY_LENGTH);
+        Arrays.fill(prk, (byte) 0);
+        return resumption;
+    }
+
+    /**
+     * @param value a positive number
+     * @return its big endian bytes without a sign byte
+     */
+    private static byte[] magnitude(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0)
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        return bytes;
+    }
+}
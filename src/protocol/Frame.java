@@ -0,0 +1,122 @@
+package protocol;
+
+import java.math.BigInteger;
+
+/**
+ * A decoded binary frame
+ * The same instance is refilled by every decode so a connection
+ * does not allocate a holder per message
+ */
+public final class Frame {
+    private byte type;
+    private int sequence;
+    private String id;
+    private BigInteger key;
+    private byte[] ticket;
+    private int lifetime;
+    private byte group;
+    private byte[] offered;
+    private byte[] nonce;
+    private int stream = -1;
+
+    /**
+     * @return the frame type, one of the Wire constants
+     */
+    public byte type() {
+        return type;
+    }
+
+    /**
+     * @return the sequence number of a pipelined frame, 0 otherwise
+     */
+    public int sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the id of the sender
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return the public key carried by the frame
+     */
+    public BigInteger key() {
+        return key;
+    }
+
+    /**
+     * @return the session ticket of a ticket response or resume request, otherwise null
+     */
+    public byte[] ticket() {
+        return ticket;
+    }
+
+    /**
+     * @return seconds a ticket of a ticket response stays valid,
+     * milliseconds to wait before connecting again for a busy frame
+     */
+    public int lifetime() {
+        return lifetime;
+    }
+
+    /**
+     * @return the group of the key of a group frame, 0 otherwise
+     */
+    public byte group() {
+        return group;
+    }
+
+    /**
+     * @return the ids of the groups a group request offers, otherwise null
+     */
+    public byte[] offered() {
+        return offered;
+    }
+
+    /**
+     * @return the nonce of a channel open or accept, otherwise null
+     */
+    public byte[] nonce() {
+        return nonce;
+    }
+
+    /**
+     * @return the id of the stream that carried the frame, -1 if it came on its own
+     */
+    public int stream() {
+        return stream;
+    }
+
+    void set(byte type, int sequence, String id, BigInteger key) {
+        set(type, sequence, id, key, null, 0);
+    }
+
+    void set(byte type, int sequence, String id, BigInteger key, byte[] ticket, int lifetime) {
+        this.type = type;
+        this.sequence = sequence;
+        this.id = id;
+        this.key = key;
+        this.ticket = ticket;
+        this.lifetime = lifetime;
+        this.group = 0;
+        this.offered = null;
+        this.nonce = null;
+        this.stream = -1;
+    }
+
+    void setGroup(byte group, byte[] offered) {
+        this.group = group;
+        this.offered = offered;
+    }
+
+    void setNonce(byte[] nonce) {
+        this.nonce = nonce;
+    }
+
+    void setStream(int stream) {
+        this.stream = stream;
+    }
+}
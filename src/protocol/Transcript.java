@@ -0,0 +1,157 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The file format of recorded handshake traffic, the bytes every client
+ * sent with the time they arrived, to replay them against a server later
+ *
+ * magic (int) | version (int) | start (long, epoch ms) | event...
+ *
+ * An event is type (byte) | connection (varint) | microseconds since the
+ * previous event (varint), a DATA event is followed by length (varint) |
+ * bytes. The events of all connections are interleaved in arrival order,
+ * a file cut short by a crash ends at its last complete event.
+ */
+public final class Transcript {
+    public static final int MAGIC = 0x44484b54;
+    public static final int VERSION = 1;
+    public static final byte OPEN = 1;
+    public static final byte DATA = 2;
+    public static final byte CLOSE = 3;
+
+    private Transcript() {
+        // empty constructor
+    }
+
+    /**
+     * The recorded bytes of one client connection
+     */
+    public static final class Connection {
+        private final long openedAt;
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<byte[]> chunks = new ArrayList<>();
+
+        Connection(long openedAt) {
+            this.openedAt = openedAt;
+        }
+
+        /**
+         * @return microseconds from the start of the recording to the accept
+         */
+        public long openedAt() {
+            return openedAt;
+        }
+
+        /**
+         * @return number of reads recorded
+         */
+        public int chunks() {
+            return chunks.size();
+        }
+
+        /**
+         * @param i the index of a read
+         * @return microseconds from the accept to the read
+         */
+        public long offset(int i) {
+            return offsets.get(i);
+        }
+
+        /**
+         * @param i the index of a read
+         * @return the bytes of the read
+         */
+        public byte[] chunk(int i) {
+            return chunks.get(i);
+        }
+    }
+
+    /**
+     * Reads a whole recording
+     * @param path the file written by a recording server
+     * @return the connections in the order they were accepted
+     * @throws IOException if the file is not a transcript
+     */
+    public static List<Connection> read(Path path) throws IOException {
+        List<Connection> connections = new ArrayList<>();
+        Map<Long, Connection> open = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a transcript: " + path);
+            in.readLong();
+            long now = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                try {
+                    long id = getVarLong(in);
+                    now += getVarLong(in);
+                    if (type == OPEN) {
+                        Connection connection = new Connection(now);
+                        connections.add(connection);
+                        open.put(id, connection);
+                    } else if (type == DATA) {
+                        byte[] chunk = new byte[(int) getVarLong(in)];
+                        in.readFully(chunk);
+                        Connection connection = open.get(id);
+                        if (connection != null) {
+                            connection.offsets.add(now - connection.openedAt);
+                            connection.chunks.add(chunk);
+                        }
+                    } else if (type == CLOSE) {
+                        open.remove(id);
+                    } else {
+                        throw new IOException("Unknown transcript event " + type);
+                    }
+                } catch (EOFException e) {
+                    // the recording was cut short
+                    break;
+                }
+            }
+        }
+        return connections;
+    }
+
+    /**
+     * Writes an unsigned number in 7 bit groups, the lowest first
+     * @param out the stream to write to
+     * @param value a number not below 0
+     * @throws IOException if the stream fails
+     */
+    public static void putVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @param in the stream to read from
+     * @return the number written by putVarLong
+     * @throws IOException if the stream fails or ends
+     */
+    public static long getVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,533 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing of the key exchange
+ *
+ * Every frame is
+ * magic (1 byte) | version (1 byte) | type (1 byte) | body length (2 bytes) | body
+ * and a key frame body is
+ * id length (2 bytes) | id (UTF-8) | key length (2 bytes) | key
+ * where the key is big endian, padded to the byte length of the prime.
+ * Pipelined key frames start their body with a 4 byte sequence number
+ * that the response echoes, so many requests can be in flight at once.
+ *
+ * Session resumption: a ticket request is a key request asking for a
+ * ticket, answered by a key frame followed by
+ * ticket length (1 byte) | ticket | lifetime in seconds (4 bytes).
+ * On a later connection the client sends
+ * id length (2 bytes) | id | ticket length (1 byte) | ticket
+ * and the server accepts or rejects it with a frame holding only its id.
+ *
+ * Group negotiation: a group request carries the group of its key and
+ * the groups the client supports in order of preference
+ * group (1 byte) | group count (1 byte) | groups | key frame body
+ * The server answers with a group response, a ticket response body after
+ * the group (1 byte), when it prefers the group of the key. Otherwise it
+ * sends a group retry, group (1 byte) | id length (2 bytes) | id, naming the
+ * group the client should send a key of, 0 if they share none.
+ *
+ * Data channel: after a key exchange or resumption the client sends a
+ * channel open with nonce length (1 byte) | nonce, the server answers with a
+ * channel accept of the same layout, and from then on both sides only send
+ * the encrypted records of DataChannel on the connection. A server that
+ * serves the connection from an event loop has no data channel, it answers
+ * with a channel refused holding only its id and the connection stays open
+ * for key exchanges.
+ *
+ * Admission control: a server too busy to serve a connection answers with
+ * a busy frame, id length (2 bytes) | id | retry after in milliseconds
+ * (4 bytes), and closes the connection without reading a request.
+ *
+ * Multiplexing: a stream frame carries stream id (4 bytes) | frame, a
+ * complete frame of one logical session of the connection. Every stream
+ * has its own exchange and key, the server answers in a stream frame of
+ * the same id. Stream frames do not nest.
+ *
+ * The magic byte can never start a writeUTF message of a key exchange
+ * (it would announce a string of more than 53000 bytes), so a server tells
+ * both protocols apart from the first byte it receives.
+ */
+public final class Wire {
+    public static final int MAGIC = 0xD1;
+    public static final int VERSION = 1;
+    public static final byte KEY_REQUEST = 1;
+    public static final byte KEY_RESPONSE = 2;
+    public static final byte PIPELINED_REQUEST = 3;
+    public static final byte PIPELINED_RESPONSE = 4;
+    public static final byte TICKET_REQUEST = 5;
+    public static final byte TICKET_RESPONSE = 6;
+    public static final byte RESUME_REQUEST = 7;
+    public static final byte RESUME_ACCEPTED = 8;
+    public static final byte RESUME_REJECTED = 9;
+    public static final byte GROUP_REQUEST = 10;
+    public static final byte GROUP_RESPONSE = 11;
+    public static final byte GROUP_RETRY = 12;
+    public static final byte CHANNEL_OPEN = 13;
+    public static final byte CHANNEL_ACCEPT = 14;
+    public static final byte BUSY = 15;
+    public static final byte STREAM = 16;
+    public static final byte CHANNEL_REFUSED = 17;
+    public static final int MAX_TICKET_LENGTH = 255;
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_FRAME_LENGTH = 4096;
+    /** Bytes a stream frame adds in front of the frame it carries */
+    public static final int STREAM_OVERHEAD = HEADER_LENGTH + 4;
+
+    private Wire() {
+        // empty constructor
+    }
+
+    /**
+     * @param p the prime no
+     * @return number of bytes every key is padded to
+     */
+    public static int keyWidth(BigInteger p) {
+        return (p.bitLength() + 7) >>> 3;
+    }
+
+    /**
+     * Writes a key frame at the position of the buffer
+     * @param buf the buffer to write into
+     * @param type KEY_REQUEST or KEY_RESPONSE
+     * @param id the id of the sender
+     * @param key the public key
+     * @param width the byte length of the prime
+     */
+    public static void putKeyFrame(ByteBuffer buf, byte type, String id, BigInteger key, int width) {
+        putKeyFrame(buf, type, 0, id, key, width);
+    }
+
+    /**
+     * Writes a key frame at the position of the buffer
+     * @param buf the buffer to write into
+     * @param type any key frame type
+     * @param sequence the sequence number, only written for pipelined frames
+     * @param id the id of the sender
+     * @param key the public key
+     * @param width the byte length of the prime
+     */
+    public static void putKeyFrame(ByteBuffer buf, byte type, int sequence, String id, BigInteger key, int width) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        boolean pipelined = type == PIPELINED_REQUEST || type == PIPELINED_RESPONSE;
+        int body = (pipelined ? 4 : 0) + 2 + idBytes.length + 2 + width;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, type, body);
+        if (pipelined)
+            buf.putInt(sequence);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putShort((short) width);
+        putFixed(buf, key, width);
+    }
+
+    /**
+     * Writes a ticket response, a key response carrying a session ticket
+     * @param buf the buffer to write into
+     * @param id the id of the server
+     * @param key the public key of the server
+     * @param width the byte length of the prime
+     * @param ticket the ticket, empty if the server does not resume sessions
+     * @param lifetime seconds the ticket stays valid
+     */
+    public static void putTicketFrame(ByteBuffer buf, String id, BigInteger key, int width, byte[] ticket, int lifetime) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + idBytes.length + 2 + width + 1 + ticket.length + 4;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH || ticket.length > MAX_TICKET_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, TICKET_RESPONSE, body);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putShort((short) width);
+        putFixed(buf, key, width);
+        buf.put((byte) ticket.length);
+        buf.put(ticket);
+        buf.putInt(lifetime);
+    }
+
+    /**
+     * Writes a key request negotiating the group
+     * @param buf the buffer to write into
+     * @param group the group of the key
+     * @param offered the groups the client supports, most preferred first
+     * @param id the id of the client
+     * @param key the public key of the client in the group
+     * @param width the key width of the group
+     */
+    public static void putGroupRequest(ByteBuffer buf, byte group, byte[] offered, String id, BigInteger key, int width) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + offered.length + 2 + idBytes.length + 2 + width;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH || offered.length > 255)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, GROUP_REQUEST, body);
+        buf.put(group);
+        buf.put((byte) offered.length);
+        buf.put(offered);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putShort((short) width);
+        putFixed(buf, key, width);
+    }
+
+    /**
+     * Writes the response to a group request in the group of its key
+     * @param buf the buffer to write into
+     * @param group the group of the keys
+     * @param id the id of the server
+     * @param key the public key of the server
+     * @param width the key width of the group
+     * @param ticket the ticket, empty if the server does not resume sessions
+     * @param lifetime seconds the ticket stays valid
+     */
+    public static void putGroupResponse(ByteBuffer buf, byte group, String id, BigInteger key, int width, byte[] ticket, int lifetime) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 1 + 2 + idBytes.length + 2 + width + 1 + ticket.length + 4;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH || ticket.length > MAX_TICKET_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, GROUP_RESPONSE, body);
+        buf.put(group);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putShort((short) width);
+        putFixed(buf, key, width);
+        buf.put((byte) ticket.length);
+        buf.put(ticket);
+        buf.putInt(lifetime);
+    }
+
+    /**
+     * Writes the answer to a group request with a key of another group
+     * @param buf the buffer to write into
+     * @param group the group the server wants a key of, 0 if none is shared
+     * @param id the id of the server
+     */
+    public static void putGroupRetry(ByteBuffer buf, byte group, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 1 + 2 + idBytes.length;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, GROUP_RETRY, body);
+        buf.put(group);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+    }
+
+    /**
+     * Writes a request to resume the session of a ticket
+     * @param buf the buffer to write into
+     * @param id the id of the client
+     * @param ticket the ticket received with the session
+     */
+    public static void putResumeRequest(ByteBuffer buf, String id, byte[] ticket) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + idBytes.length + 1 + ticket.length;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH || ticket.length > MAX_TICKET_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, RESUME_REQUEST, body);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.put((byte) ticket.length);
+        buf.put(ticket);
+    }
+
+    /**
+     * Writes the answer to a resume request
+     * @param buf the buffer to write into
+     * @param accepted if the session was resumed
+     * @param id the id of the server
+     */
+    public static void putResumeReply(ByteBuffer buf, boolean accepted, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + idBytes.length;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, accepted ? RESUME_ACCEPTED : RESUME_REJECTED, body);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+    }
+
+    /**
+     * Writes the answer of a server without data channels to a channel open
+     * @param buf the buffer to write into
+     * @param id the id of the server
+     */
+    public static void putChannelRefused(ByteBuffer buf, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + idBytes.length;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, CHANNEL_REFUSED, body);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+    }
+
+    /**
+     * Writes the answer of a server that sheds the connection
+     * @param buf the buffer to write into
+     * @param id the id of the server
+     * @param retryAfter milliseconds the client should wait before connecting again
+     */
+    public static void putBusy(ByteBuffer buf, String id, int retryAfter) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + idBytes.length + 4;
+        if (HEADER_LENGTH + body > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("Frame too long");
+        putHeader(buf, BUSY, body);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putInt(retryAfter);
+    }
+
+    /**
+     * Writes a channel open or accept
+     * @param buf the buffer to write into
+     * @param type CHANNEL_OPEN or CHANNEL_ACCEPT
+     * @param nonce the random nonce of the sender
+     */
+    public static void putChannelFrame(ByteBuffer buf, byte type, byte[] nonce) {
+        if (nonce.length > 255)
+            throw new IllegalArgumentException("Nonce too long");
+        putHeader(buf, type, 1 + nonce.length);
+        buf.put((byte) nonce.length);
+        buf.put(nonce);
+    }
+
+    /**
+     * Turns the frame written into the buffer since start into the body of
+     * a stream frame, moving it back to make room for the stream header
+     * @param buf a heap buffer with the frame between start and its position
+     * @param start the index of the first byte of the frame
+     * @param stream the id of the stream, not below 0
+     */
+    public static void wrapStream(ByteBuffer buf, int start, int stream) {
+        int length = buf.position() - start;
+        if (STREAM_OVERHEAD + length > MAX_FRAME_LENGTH || start + STREAM_OVERHEAD + length > buf.limit())
+            throw new IllegalArgumentException("Frame too long");
+        System.arraycopy(buf.array(), buf.arrayOffset() + start, buf.array(), buf.arrayOffset() + start + STREAM_OVERHEAD, length);
+        buf.position(start);
+        putHeader(buf, STREAM, 4 + length);
+        buf.putInt(stream);
+        buf.position(start + STREAM_OVERHEAD + length);
+    }
+
+    /**
+     * Writes the header of a frame
+     * @param buf the buffer to write into
+     * @param type the frame type
+     * @param bodyLength the number of bytes following the header
+     */
+    static void putHeader(ByteBuffer buf, byte type, int bodyLength) {
+        buf.put((byte) MAGIC);
+        buf.put((byte) VERSION);
+        buf.put(type);
+        buf.putShort((short) bodyLength);
+    }
+
+    /**
+     * Writes a non negative number as exactly width big endian bytes
+     * @param buf the buffer to write into
+     * @param value the number
+     * @param width the number of bytes
+     */
+    public static void putFixed(ByteBuffer buf, BigInteger value, int width) {
+        byte[] bytes = value.toByteArray();
+        // toByteArray may add a leading zero for the sign
+        int skip = 0;
+        while (bytes.length - skip > width && bytes[skip] == 0) {
+            skip++;
+        }
+        int length = bytes.length - skip;
+        if (length > width || value.signum() < 0)
+            throw new IllegalArgumentException("Key does not fit in " + width + " bytes");
+        for (int i = length; i < width; i++) {
+            buf.put((byte) 0);
+        }
+        buf.put(bytes, skip, length);
+    }
+
+    /**
+     * Checks if a complete frame is available between position and limit
+     * @param buf the received bytes, the position is not moved
+     * @return the length of the frame or -1 if more bytes are needed
+     * @throws ProtocolException if the bytes are not a supported frame
+     */
+    public static int frameLength(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        if (buf.remaining() < HEADER_LENGTH)
+            return -1;
+        if ((buf.get(start) & 0xFF) != MAGIC)
+            throw new ProtocolException("Not a binary frame");
+        if (buf.get(start + 1) != VERSION)
+            throw new ProtocolException("Unsupported protocol version " + buf.get(start + 1));
+        int length = HEADER_LENGTH + (buf.getShort(start + 3) & 0xFFFF);
+        if (length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("Frame too long");
+        return buf.remaining() < length ? -1 : length;
+    }
+
+    /**
+     * Decodes the complete frame at the position of the buffer
+     * and moves the position past it
+     * @param buf the buffer holding a complete frame
+     * @param into the holder to fill
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static void getFrame(ByteBuffer buf, Frame into) throws ProtocolException {
+        int length = frameLength(buf);
+        if (length < 0)
+            throw new ProtocolException("Incomplete frame");
+        int end = buf.position() + length;
+        byte type = buf.get(buf.position() + 2);
+        if (type == STREAM) {
+            getStream(buf, into, end);
+            return;
+        }
+        buf.position(buf.position() + HEADER_LENGTH);
+        try {
+            if (type == KEY_REQUEST || type == KEY_RESPONSE || type == TICKET_REQUEST) {
+                String id = getString(buf);
+                int width = buf.getShort() & 0xFFFF;
+                into.set(type, 0, id, getFixed(buf, width));
+            } else if (type == PIPELINED_REQUEST || type == PIPELINED_RESPONSE) {
+                int sequence = buf.getInt();
+                String id = getString(buf);
+                int width = buf.getShort() & 0xFFFF;
+                into.set(type, sequence, id, getFixed(buf, width));
+            } else if (type == TICKET_RESPONSE) {
+                String id = getString(buf);
+                int width = buf.getShort() & 0xFFFF;
+                BigInteger key = getFixed(buf, width);
+                byte[] ticket = new byte[buf.get() & 0xFF];
+                buf.get(ticket);
+                into.set(type, 0, id, key, ticket, buf.getInt());
+            } else if (type == RESUME_REQUEST) {
+                String id = getString(buf);
+                byte[] ticket = new byte[buf.get() & 0xFF];
+                buf.get(ticket);
+                into.set(type, 0, id, null, ticket, 0);
+            } else if (type == RESUME_ACCEPTED || type == RESUME_REJECTED || type == CHANNEL_REFUSED) {
+                into.set(type, 0, getString(buf), null);
+            } else if (type == GROUP_REQUEST) {
+                byte group = buf.get();
+                byte[] offered = new byte[buf.get() & 0xFF];
+                buf.get(offered);
+                String id = getString(buf);
+                int width = buf.getShort() & 0xFFFF;
+                into.set(type, 0, id, getFixed(buf, width));
+                into.setGroup(group, offered);
+            } else if (type == GROUP_RESPONSE) {
+                byte group = buf.get();
+                String id = getString(buf);
+                int width = buf.getShort() & 0xFFFF;
+                BigInteger key = getFixed(buf, width);
+                byte[] ticket = new byte[buf.get() & 0xFF];
+                buf.get(ticket);
+                into.set(type, 0, id, key, ticket, buf.getInt());
+                into.setGroup(group, null);
+            } else if (type == GROUP_RETRY) {
+                byte group = buf.get();
+                into.set(type, 0, getString(buf), null);
+                into.setGroup(group, null);
+            } else if (type == BUSY) {
+                String id = getString(buf);
+                into.set(type, 0, id, null, null, buf.getInt());
+            } else if (type == CHANNEL_OPEN || type == CHANNEL_ACCEPT) {
+                byte[] nonce = new byte[buf.get() & 0xFF];
+                buf.get(nonce);
+                into.set(type, 0, null, null);
+                into.setNonce(nonce);
+            } else {
+                throw new ProtocolException("Unknown frame type " + type);
+            }
+            if (buf.position() != end)
+                throw new ProtocolException("Malformed frame");
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed frame");
+        } finally {
+            buf.position(end);
+        }
+    }
+
+    /**
+     * Decodes the frame a stream frame carries
+     * @param buf the buffer at the start of the stream frame
+     * @param into the holder to fill
+     * @param end the index after the stream frame
+     * @throws ProtocolException if the frame is malformed
+     */
+    private static void getStream(ByteBuffer buf, Frame into, int end) throws ProtocolException {
+        int inner = buf.position() + STREAM_OVERHEAD;
+        try {
+            int stream = buf.getInt(buf.position() + HEADER_LENGTH);
+            if (stream < 0 || inner + HEADER_LENGTH > end || buf.get(inner + 2) == STREAM)
+                throw new ProtocolException("Malformed frame");
+            buf.position(inner);
+            // the carried frame must end with the stream frame, not run into the next one
+            int length = frameLength(buf);
+            if (length < 0 || inner + length != end)
+                throw new ProtocolException("Malformed frame");
+            getFrame(buf, into);
+            into.setStream(stream);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Malformed frame");
+        } finally {
+            buf.position(end);
+        }
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string
+     */
+    static String getString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xFFFF;
+        String value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads a non negative big endian number straight from the backing array
+     */
+    static BigInteger getFixed(ByteBuffer buf, int width) {
+        BigInteger value = new BigInteger(1, buf.array(), buf.arrayOffset() + buf.position(), width);
+        buf.position(buf.position() + width);
+        return value;
+    }
+
+    /**
+     * Blocks until a complete frame is read from the stream
+     * @param in the stream, positioned at the start of a frame
+     * @param buf a heap buffer of MAX_FRAME_LENGTH bytes, reused between calls
+     * @param into the holder to fill
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public static void readFrame(DataInputStream in, ByteBuffer buf, Frame into) throws IOException {
+        buf.clear();
+        in.readFully(buf.array(), buf.arrayOffset(), HEADER_LENGTH);
+        buf.limit(HEADER_LENGTH);
+        if (frameLength(buf) < 0) {
+            int length = HEADER_LENGTH + (buf.getShort(3) & 0xFFFF);
+            in.readFully(buf.array(), buf.arrayOffset() + HEADER_LENGTH, length - HEADER_LENGTH);
+            buf.limit(length);
+        }
+        getFrame(buf, into);
+    }
+
+    /**
+     * Writes the frames encoded in the buffer to the stream
+     * @param out the stream
+     * @param buf a heap buffer with the frames between 0 and its position
+     * @throws IOException if the stream fails
+     */
+    public static void writeFrames(OutputStream out, ByteBuffer buf) throws IOException {
+        out.write(buf.array(), buf.arrayOffset(), buf.position());
+    }
+}
@@ -0,0 +1,195 @@
+package server;
+
+import protocol.Wire;
+import server.ServerMetrics.Phase;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the accepted connections
+ *
+ * At most -Ddhke.admission.maxHandshakes connections are between accept and
+ * their first session key at once (default 0, no limit). Further ones wait
+ * in a queue of -Ddhke.admission.queue connections (default 64) for at most
+ * -Ddhke.admission.maxWait milliseconds (default 1000). A connection finding
+ * the queue full or waiting too long is shed: it is answered with a busy
+ * frame asking the client to retry after -Ddhke.admission.retryAfter
+ * milliseconds (default 200) and closed, so the handshakes in progress keep
+ * their latency when more clients connect than the server can serve.
+ * Established sessions hold no slot.
+ */
+final class Admission {
+    /** Closing right after the busy frame could reset the connection before the client reads it */
+    private static final long LINGER_MILLIS = 1000;
+    private final int maxHandshakes;
+    private final int capacity;
+    private final long maxWait;
+    private final int retryAfter;
+    private final ServerMetrics metrics;
+    private final Deadlines deadlines;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Queue<Waiting> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * An accepted connection asking for a handshake slot
+     */
+    interface Candidate {
+        /**
+         * Starts serving the connection, it holds a slot until release()
+         */
+        void admit();
+
+        /**
+         * Answers busy and shuts down the output, without blocking
+         * @param retryAfter milliseconds the client should wait
+         */
+        void reject(int retryAfter);
+
+        /**
+         * Closes the connection after a reject
+         */
+        void close();
+    }
+
+    /**
+     * A candidate in the queue
+     */
+    private static final class Waiting {
+        final Candidate candidate;
+        final long since = System.nanoTime();
+        TimerWheel.Timeout timeout;
+
+        Waiting(Candidate candidate) {
+            this.candidate = candidate;
+        }
+    }
+
+    /**
+     * @param maxHandshakes connections between accept and session key at once, 0 for no limit
+     * @param capacity connections waiting for a slot at most
+     * @param maxWait milliseconds a connection waits for a slot at most
+     * @param retryAfter milliseconds a shed client is asked to wait
+     * @param metrics counts the queued and shed connections
+     * @param deadlines the timer of the queue waits
+     */
+    Admission(int maxHandshakes, int capacity, long maxWait, int retryAfter, ServerMetrics metrics, Deadlines deadlines) {
+        this.maxHandshakes = Math.max(0, maxHandshakes);
+        this.capacity = Math.max(0, capacity);
+        this.maxWait = Math.max(1, maxWait);
+        this.retryAfter = Math.max(0, retryAfter);
+        this.metrics = metrics;
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * Creates the admission control configured by the system properties
+     * @param metrics counts the queued and shed connections
+     * @param deadlines the timer of the queue waits
+     * @return the admission control
+     */
+    static Admission fromProperties(ServerMetrics metrics, Deadlines deadlines) {
+        return new Admission(Integer.getInteger("dhke.admission.maxHandshakes", 0),
+                Integer.getInteger("dhke.admission.queue", 64), Long.getLong("dhke.admission.maxWait", 1000),
+                Integer.getInteger("dhke.admission.retryAfter", 200), metrics, deadlines);
+    }
+
+    /**
+     * Admits, queues or sheds an accepted connection
+     * @param candidate the connection
+     */
+    void offer(Candidate candidate) {
+        if (maxHandshakes == 0 || tryAcquire()) {
+            candidate.admit();
+            return;
+        }
+        if (waiting.incrementAndGet() > capacity) {
+            waiting.decrementAndGet();
+            shed(candidate);
+            return;
+        }
+        metrics.queued();
+        Waiting entry = new Waiting(candidate);
+        entry.timeout = deadlines.after(() -> {
+            if (queue.remove(entry)) {
+                waiting.decrementAndGet();
+                shed(candidate);
+            }
+        }, maxWait);
+        queue.add(entry);
+        // a slot may have been released before the connection was queued
+        drain();
+    }
+
+    /**
+     * Frees the slot of an admitted connection and admits the next waiting one
+     */
+    void release() {
+        if (maxHandshakes == 0)
+            return;
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * Admits waiting connections while there are free slots
+     */
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            Waiting entry = queue.poll();
+            if (entry == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            waiting.decrementAndGet();
+            entry.timeout.cancel();
+            metrics.record(Phase.ADMISSION, entry.since);
+            entry.candidate.admit();
+        }
+    }
+
+    /**
+     * @return if a slot was taken
+     */
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxHandshakes)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Answers busy and closes the connection a moment later
+     */
+    private void shed(Candidate candidate) {
+        metrics.shed();
+        candidate.reject(retryAfter);
+        deadlines.after(candidate::close, LINGER_MILLIS);
+    }
+
+    /**
+     * @param serverId the id of the server
+     * @param retryAfter milliseconds the client should wait
+     * @return a heap buffer holding the busy frame between position and limit
+     */
+    static ByteBuffer busyFrame(String serverId, int retryAfter) {
+        ByteBuffer busy = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+        Wire.putBusy(busy, serverId, retryAfter);
+        return busy.flip();
+    }
+
+    /**
+     * @return the statistics of the admission control
+     */
+    String stats() {
+        if (maxHandshakes == 0)
+            return "Admission unlimited";
+        return "Admission handshakes: " + inFlight.get() + "/" + maxHandshakes + ", waiting: " + waiting.get() + "/" + capacity;
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * The threads computing the keys of pipelined batches, shared by every
+ * connection of a server instead of the common ForkJoinPool
+ *
+ * A batch is split into one chunk per thread. A connection thread runs a
+ * chunk itself and waits for the others, an event loop hands the whole
+ * batch over and goes on serving its other connections.
+ */
+final class BatchExecutor {
+    private final ExecutorService threads;
+    private final int parallelism;
+
+    /**
+     * @param parallelism number of threads, created when first needed
+     */
+    BatchExecutor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger created = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(this.parallelism, task -> {
+            Thread thread = new Thread(task, "pipeline-" + created.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the executor configured by the system property
+     * dhke.pipeline.threads (default the number of available processors)
+     * @return the executor
+     */
+    static BatchExecutor fromProperties() {
+        return new BatchExecutor(Integer.getInteger("dhke.pipeline.threads",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Runs a batch on the threads and the calling thread and waits for it
+     * @param count number of tasks, the task is called with 0 to count - 1
+     * @param task the work of one element of the batch
+     * @throws RuntimeException the failure of a task
+     */
+    void run(int count, IntConsumer task) {
+        int chunks = Math.min(count, parallelism + 1);
+        CompletableFuture<?>[] forked = new CompletableFuture<?>[chunks - 1];
+        for (int i = 1; i < chunks; i++) {
+            int chunk = i;
+            forked[i - 1] = CompletableFuture.runAsync(() -> runChunk(chunk, chunks, count, task), threads);
+        }
+        RuntimeException failure = null;
+        try {
+            runChunk(0, chunks, count, task);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // the others still use the arrays of the batch, wait for them either way
+        try {
+            CompletableFuture.allOf(forked).join();
+        } catch (CompletionException e) {
+            if (failure == null)
+                failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Runs a batch on the threads only
+     * @param count number of tasks, the task is called with 0 to count - 1
+     * @param task the work of one element of the batch
+     * @return completes when every task finished, exceptionally with the failure of a task
+     */
+    CompletableFuture<Void> submit(int count, IntConsumer task) {
+        int chunks = Math.min(count, parallelism);
+        CompletableFuture<?>[] forked = new CompletableFuture<?>[chunks];
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            forked[i] = CompletableFuture.runAsync(() -> runChunk(chunk, chunks, count, task), threads);
+        }
+        return CompletableFuture.allOf(forked);
+    }
+
+    private static void runChunk(int chunk, int chunks, int count, IntConsumer task) {
+        for (int i = chunk; i < count; i += chunks) {
+            task.accept(i);
+        }
+    }
+
+    /**
+     * Stops the threads, batches still running finish
+     */
+    void stop() {
+        threads.shutdown();
+    }
+}
@@ -1,32 +1,52 @@
 package server;
 
+import crypto.Entropy;
+import crypto.Group;
+import log.Log;
+import protocol.DataChannel;
+import protocol.Frame;
+import protocol.Wire;
+import server.ServerMetrics.Failure;
+import server.ServerMetrics.Phase;
+
 import java.io.*;
 import java.math.BigInteger;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.Random;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
-public final class ClientThread extends Thread {
-    private static final long threadSleep = 3000; // 3 seconds
-    private static final BigInteger P;
-    private static final BigInteger G;
-    private final String serverId;
+public final class ClientThread implements Runnable {
+    private static final Log log = Log.get(ClientThread.class);
+    private static final int MAX_BATCH = 256;
     private final Socket socket;
     private final String clientAddress;
+    private final ServerContext context;
+    private final ServerMetrics metrics;
+    private final long acceptedAt;
+    private long servingSince;
+    private boolean firstRequest = true;
     private BigInteger sessionKey;
+    private final Streams streams = new Streams();
+    /** The stream of the request being served, -1 if it came on its own */
+    private int stream = -1;
+    private DataChannel channel;
+    private TimerWheel.Timeout deadline;
+    private volatile boolean expired;
+    private boolean holdsSlot = true;
+    private TranscriptRecorder.Recording recording;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final Frame frame = new Frame();
     DataInputStream in = null;
     DataOutputStream out = null;
 
-    /**
-     * The G and P constants same for
-     * both client and server and available to all.
-     */
-    static {
-        P = new BigInteger("B10B8F96A080E01DDE92DE5EAE5D54EC52C99FBCFB06A3C69A6A9DCA52D23B616073E28675A23D189838EF1E2EE652C013ECB4AEA906112324975C3CD49B83BFACCBDD7D90C4BD7098488E9C219A73724EFFD6FAE5644738FAA31A4FF55BCCC0A151AF5F0DC8B4BD45BF37DF365C1A65E68CFDA76D4DA708DF1FB2BC2E4A4371", 16);
-        G = new BigInteger("A4D1CBD5C3FD34126765A442EFB99905F8104DD258AC507FD6406CFF14266D31266FEA1E5C41564B777E690F5504F213160217B4B01B886A5E91547F9E2749F4D7FBD7D3B9A92EE1909D0D2263F80A76A6A24C087A091F531DBF0A0169B6A28AD662A4D18E73AFA32D779D5918D08BC8858F4DCEF97C2A24855E6EEB22B3B2E5", 16);
-    }
-
-    ClientThread(Socket socket, String id) {
-        this.serverId = id;
+    ClientThread(Socket socket, ServerContext context) {
+        this.acceptedAt = System.nanoTime();
+        this.context = context;
+        this.metrics = context.metrics;
         this.socket = socket;
         this.clientAddress = socket.getRemoteSocketAddress().toString();
     }
@@ -40,47 +60,78 @@ public final class ClientThread extends Thread {
             try {
                 in.close();
             } catch (Exception e) {
-                System.out.println("Unable to close Input Stream");
+                log.warn("Unable to close Input Stream");
             }
         }
         if (out != null) {
             try {
                 out.close();
             } catch (Exception e) {
-                System.out.println("Unable to close Output Stream");
+                log.warn("Unable to close Output Stream");
             }
         }
         try {
             if (!socket.isInputShutdown())
-                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                in = new DataInputStream(new BufferedInputStream(recording.wrap(socket.getInputStream())));
             if (!socket.isInputShutdown())
                 out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         } catch (Exception e) {
-            System.out.println("Unable to open communication streams");
+            log.warn("Unable to open communication streams");
             return;
         }
         if (in == null || out == null) {
-            System.out.println("Communication Channels Unavailable");
+            log.warn("Communication Channels Unavailable");
         }
     }
 
     /**
-     * To run this particular client thread
+     * To run this particular client on the calling thread
      * Entry point of client communication
      */
     public void run() {
-        int noOfKeyExchanges = 1;
+        metrics.accepted();
+        servingSince = metrics.record(Phase.ACCEPT, acceptedAt);
+        deadline = context.deadlines.handshake(this::expire, acceptedAt);
+        recording = context.recorder.open();
         establishIO();
-        for(int i = 0; i < noOfKeyExchanges; i++) {
-            keyExchange();
+        // serve key exchanges until the client closes the connection
+        while (keyExchange()) {
+            if (sessionKey != null || streams.established() > 0) {
+                releaseSlot();
+                context.deadlines.idle(deadline);
+            }
+        }
+        releaseSlot();
+        if (channel != null)
+            communicate();
+        deadline.cancel();
+        close();
+    }
+
+    /**
+     * Frees the handshake slot of admission control once
+     * the connection has a session key or ends
+     */
+    private void releaseSlot() {
+        if (holdsSlot) {
+            holdsSlot = false;
+            context.admission.release();
         }
-        //communicate();
+    }
+
+    /**
+     * Closes the connection once its deadline passed, on the timer thread,
+     * the blocked read or write of the client thread fails and it ends
+     */
+    private void expire() {
+        expired = true;
+        metrics.failure(Failure.TIMEOUT);
+        log.warn("Connection of {} timed out", clientAddress);
         try {
-            sleep(threadSleep);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Unable to Close the Connection");
         }
-        close();
     }
 
     /**
@@ -88,6 +139,7 @@ public final class ClientThread extends Thread {
      * release the resources
      */
     private void close() {
+        recording.close();
         try {
             if (socket != null)
                 socket.close();
@@ -96,10 +148,10 @@ public final class ClientThread extends Thread {
             if (in != null)
                 in.close();
         } catch (Exception e) {
-            System.out.println("Unable to Close the Connection");
+            log.warn("Unable to Close the Connection");
         }
         /* Documentation */
-        System.out.println("Connection Closed of: " + this.clientAddress);
+        log.debug("Connection Closed of: {}", clientAddress);
     }
 
     /**
@@ -107,110 +159,384 @@ public final class ClientThread extends Thread {
      *
      * The function handles the cases of receiving key from client
      * and then also send back the keys.
+     * @return if the connection can be used for another exchange
      */
-    private void keyExchange() {
+    private boolean keyExchange() {
         if (in == null || out == null) {
             establishIO();
         }
-        String[] clientInfo;
-        // wait for KeyExchange to Initiate for 2 Minutes;
-        long waitStart = System.currentTimeMillis();
-        while(true) {
-            try {
+        boolean binary;
+        String[] clientInfo = null;
+        long readStarted = System.nanoTime();
+        try {
+            // the deadline of the connection limits the wait for a request
+            socket.setSoTimeout(0);
+            binary = nextIsBinary();
+            socket.setSoTimeout(context.deadlines.readTimeout);
+            if (firstRequest) {
+                metrics.record(Phase.FIRST_BYTE, servingSince);
+                firstRequest = false;
+            }
+            if (binary)
+                Wire.readFrame(in, buffer, frame);
+            else
                 clientInfo = in.readUTF().split("\\s+");
-                break;
-            } catch (IOException e) {
-                // 2 minutes
-                long maxWait = 2 * 60 * 1000;
-                if(System.currentTimeMillis() - waitStart > maxWait){
-                    return;
-                }
+        } catch (ProtocolException e) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid Key Exchange from {}: {}", clientAddress, e.getMessage());
+            return false;
+        } catch (EOFException e) {
+            // the client closed the connection
+            return false;
+        } catch (SocketTimeoutException e) {
+            metrics.failure(Failure.TIMEOUT);
+            log.warn("Request of {} not completed within {} ms", clientAddress, context.deadlines.readTimeout);
+            return false;
+        } catch (IOException e) {
+            // closed by the deadline or failed
+            if (!expired) {
+                metrics.failure(Failure.IO);
+                log.warn("Unable to read from {}: {}", clientAddress, e.getMessage());
             }
+            return false;
         }
+        long started = metrics.record(Phase.READ, readStarted);
         // if message is received then break the message
         // into client id client's public session key received
-        String clientId = clientInfo[0];
+        String clientId;
         BigInteger clientKey;
-        if (clientInfo.length == 2) {
+        Group group = KeyExchange.LEGACY;
+        stream = binary ? frame.stream() : -1;
+        if (stream >= 0 && !Streams.carries(frame)) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid request on stream {} from: {}", stream, clientAddress);
+            return false;
+        }
+        if (binary) {
+            if (frame.type() == Wire.PIPELINED_REQUEST)
+                return pipelinedExchange();
+            if (frame.type() == Wire.RESUME_REQUEST)
+                return resume();
+            if (frame.type() == Wire.CHANNEL_OPEN) {
+                openChannel();
+                return false;
+            }
+            if (frame.type() == Wire.GROUP_REQUEST) {
+                group = context.negotiate(frame.offered());
+                if (group == null || group.id() != frame.group())
+                    return retryGroup(group);
+            } else if (frame.type() != Wire.KEY_REQUEST && frame.type() != Wire.TICKET_REQUEST) {
+                metrics.failure(Failure.INVALID_REQUEST);
+                log.warn("Invalid Key Exchange from: {}", clientAddress);
+                return false;
+            }
+            clientId = frame.id();
+            clientKey = frame.key();
+        } else if (clientInfo.length == 2) {
+            clientId = clientInfo[0];
             try {
                 clientKey = new BigInteger(clientInfo[1]);
             } catch (Exception e) {
-                System.out.println("Invalid keys provided");
-                return;
+                metrics.failure(Failure.INVALID_REQUEST);
+                log.warn("Invalid keys provided by: {}", clientAddress);
+                return false;
             }
         } else {
-            System.out.println("Invalid Key Exchange");
-            return;
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid Key Exchange from: {}", clientAddress);
+            return false;
         }
         /* Documentation */
-        System.out.println("Key Exchange Request Received form: " + this.clientAddress);
+        log.debug("Key Exchange Request Received form: {}", clientAddress);
 
-        BigInteger privateKey = calcPrivateSessionKey();
-        BigInteger publicKey = calcPublicKey(privateKey);
+        KeyPair keyPair = context.keyPairs(group).take();
+        BigInteger privateKey = keyPair.privateKey;
+        BigInteger publicKey = keyPair.publicKey;
+        boolean negotiated = binary && frame.type() == Wire.GROUP_REQUEST;
+        byte[] ticket = negotiated || (binary && frame.type() == Wire.TICKET_REQUEST) ? context.sessions.newTicket() : null;
 
         /* Documentation */
-        System.out.println("Sending Public Key back to Client: " + this.clientAddress);
-
-        // sending back keys
-        // format of key change
-        // "server-id public-key-server"
-        StringBuilder buf = new StringBuilder();
-        buf.append(serverId);
-        buf.append(' ');
-        buf.append(publicKey.toString());
-        buf.append('\n');
+        log.debug("Sending Public Key back to Client: {}", clientAddress);
+
+        // sending back keys in the format the client used
+        long writeStarted = System.nanoTime();
         try {
-            out.writeUTF(buf.toString());
+            if (binary) {
+                buffer.clear();
+                if (negotiated)
+                    Wire.putGroupResponse(buffer, group.id(), context.serverId, publicKey, group.keyWidth(), ticket, context.sessions.lifetime());
+                else if (ticket != null)
+                    Wire.putTicketFrame(buffer, context.serverId, publicKey, KeyExchange.KEY_WIDTH, ticket, context.sessions.lifetime());
+                else
+                    Wire.putKeyFrame(buffer, Wire.KEY_RESPONSE, context.serverId, publicKey, KeyExchange.KEY_WIDTH);
+                if (stream >= 0)
+                    Wire.wrapStream(buffer, 0, stream);
+                Wire.writeFrames(out, buffer);
+            } else {
+                out.writeUTF(KeyExchange.buildMessage(context.serverId, publicKey));
+            }
         } catch (Exception e) {
-            System.out.println("Unable to send keys back");
-            return;
+            metrics.failure(Failure.IO);
+            log.warn("Unable to send keys back to: {}", clientAddress);
+            return false;
         }
         try {
             out.flush();
         } catch (Exception e) {
-            System.out.println("Unable to send keys back");
+            metrics.failure(Failure.IO);
+            log.warn("Unable to send keys back to: {}", clientAddress);
         }
+        long modPowStarted = metrics.record(Phase.WRITE, writeStarted);
 
-        sessionKey = calcSessionKey(clientKey, privateKey);
+        BigInteger key;
+        try {
+            key = group.sharedSecret(clientKey, privateKey);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid keys provided by {}: {}", clientAddress, e.getMessage());
+            return false;
+        }
+        metrics.record(Phase.SESSION_KEY, modPowStarted);
+        if (ticket != null)
+            context.sessions.put(ticket, clientId, key);
+        established(key);
+        metrics.record(Phase.HANDSHAKE, started);
+        metrics.handshake();
         /* Documentation */
-        System.out.println("Session Key Established");
-        System.out.println("Session Key: " + sessionKey.toString());
+        log.debug("Session Key Established with: {} in {}", clientAddress, group);
+        log.trace("Session Key: {}", Log.secret(key));
+        return true;
     }
 
     /**
-     * A utility to communicate with client
+     * Keeps the key of the current request, per stream if it came in one
+     * @param key the established or resumed key
      */
-    private void communicate() {
+    private void established(BigInteger key) {
+        if (stream >= 0)
+            streams.put(stream, key);
+        else
+            sessionKey = key;
     }
 
     /**
-     * A utility function
-     * @return A random key that will be private session key
-     * for this session with this client
+     * Asks the client for a key of the group the server prefers
+     * @param group the negotiated group, null if the client offered none the server supports
+     * @return if the connection can be used for another exchange
      */
-    private static BigInteger calcPrivateSessionKey() {
-        Random rand = new Random();
-        BigInteger randomLong = BigInteger.valueOf(rand.nextLong());
-        BigInteger midState = P.multiply(randomLong);
-        return midState.divideAndRemainder(BigInteger.valueOf(Long.MAX_VALUE))[0];
+    private boolean retryGroup(Group group) {
+        try {
+            buffer.clear();
+            Wire.putGroupRetry(buffer, group == null ? 0 : group.id(), context.serverId);
+            if (stream >= 0)
+                Wire.wrapStream(buffer, 0, stream);
+            Wire.writeFrames(out, buffer);
+            out.flush();
+        } catch (Exception e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to answer group negotiation of: {}", clientAddress);
+            return false;
+        }
+        if (group == null) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("No common group with: {}", clientAddress);
+            return false;
+        }
+        /* Documentation */
+        log.debug("Asked {} for a key in {}", clientAddress, group);
+        return true;
     }
 
     /**
-     * To calculate the public key of server
-     * @param privateKey the private key of server
-     * @return the calculated public key
+     * Resumes the session of the ticket the client presented
+     * instead of a new key exchange
+     * @return if the connection can be used for another exchange
      */
-    private static BigInteger calcPublicKey(BigInteger privateKey) {
-        return G.modPow(privateKey, P);
+    private boolean resume() {
+        BigInteger resumed = context.sessions.resume(frame.ticket(), frame.id());
+        long writeStarted = System.nanoTime();
+        try {
+            buffer.clear();
+            Wire.putResumeReply(buffer, resumed != null, context.serverId);
+            if (stream >= 0)
+                Wire.wrapStream(buffer, 0, stream);
+            Wire.writeFrames(out, buffer);
+            out.flush();
+        } catch (Exception e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to answer session resumption of: {}", clientAddress);
+            return false;
+        }
+        metrics.record(Phase.WRITE, writeStarted);
+        /* Documentation */
+        if (resumed != null) {
+            metrics.resumed();
+            established(resumed);
+            log.debug("Session Resumed of: {}", clientAddress);
+        } else {
+            log.debug("Session Resumption Rejected of: {}", clientAddress);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a batch of pipelined requests, the one just read and every
+     * complete request already received after it.
+     * The keys of the batch are calculated in parallel by this thread and
+     * the pipeline threads of the server, and all the
+     * responses are sent with a single flush.
+     * @return if the connection can be used for another exchange
+     */
+    private boolean pipelinedExchange() {
+        int[] sequences = new int[MAX_BATCH];
+        BigInteger[] clientKeys = new BigInteger[MAX_BATCH];
+        int count = 0;
+        try {
+            while (true) {
+                // pipelined requests never come in a stream, as on the first frame of the batch
+                if (frame.stream() >= 0) {
+                    metrics.failure(Failure.INVALID_REQUEST);
+                    log.warn("Invalid request on stream {} from: {}", frame.stream(), clientAddress);
+                    return false;
+                }
+                if (frame.type() != Wire.PIPELINED_REQUEST) {
+                    metrics.failure(Failure.INVALID_REQUEST);
+                    log.warn("Invalid Key Exchange from: {}", clientAddress);
+                    return false;
+                }
+                sequences[count] = frame.sequence();
+                clientKeys[count] = frame.key();
+                count++;
+                // only take requests that are already here, never wait for more
+                if (count == MAX_BATCH || in.available() < Wire.HEADER_LENGTH || !nextIsBinary())
+                    break;
+                Wire.readFrame(in, buffer, frame);
+            }
+        } catch (IOException e) {
+            metrics.failure(e instanceof ProtocolException ? Failure.INVALID_REQUEST : Failure.IO);
+            log.warn("Invalid Key Exchange from {}: {}", clientAddress, e.getMessage());
+            return false;
+        }
+        long started = System.nanoTime();
+        /* Documentation */
+        log.debug("{} Pipelined Key Exchange Requests Received form: {}", count, clientAddress);
+
+        BigInteger[] publicKeys = new BigInteger[count];
+        BigInteger[] sessionKeys = new BigInteger[count];
+        KeyPairPool keyPairs = context.keyPairs(KeyExchange.LEGACY);
+        try {
+            context.batches.run(count, i -> {
+                KeyPair keyPair = keyPairs.take();
+                publicKeys[i] = keyPair.publicKey;
+                long modPowStarted = System.nanoTime();
+                sessionKeys[i] = KeyExchange.calcSessionKey(clientKeys[i], keyPair.privateKey);
+                metrics.record(Phase.SESSION_KEY, modPowStarted);
+            });
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid keys provided by {}: {}", clientAddress, e.getMessage());
+            return false;
+        }
+        long writeStarted = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                Wire.putKeyFrame(buffer, Wire.PIPELINED_RESPONSE, sequences[i], context.serverId, publicKeys[i], KeyExchange.KEY_WIDTH);
+                Wire.writeFrames(out, buffer);
+            }
+            out.flush();
+        } catch (Exception e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to send keys back to: {}", clientAddress);
+            return false;
+        }
+        metrics.record(Phase.WRITE, writeStarted);
+        metrics.record(Phase.HANDSHAKE, started);
+        metrics.handshakes(count);
+        sessionKey = sessionKeys[count - 1];
+        /* Documentation */
+        log.debug("{} Session Keys Established with: {}", count, clientAddress);
+        return true;
+    }
+
+    /**
+     * Peeks at the first byte of the next message
+     * @return if the client speaks the binary protocol
+     * @throws IOException if the stream is closed or fails
+     */
+    private boolean nextIsBinary() throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first < 0)
+            throw new EOFException();
+        return first == Wire.MAGIC;
+    }
+
+    /**
+     * Accepts the client's request to move data over the session key,
+     * the connection carries only data channel records afterwards
+     */
+    private void openChannel() {
+        byte[] clientNonce = frame.nonce();
+        try {
+            // the client waits for the accept, nothing may follow its request yet
+            if (sessionKey == null || clientNonce.length != DataChannel.NONCE_LENGTH || in.available() > 0) {
+                metrics.failure(Failure.INVALID_REQUEST);
+                log.warn("Invalid data channel request from: {}", clientAddress);
+                return;
+            }
+            byte[] serverNonce = new byte[DataChannel.NONCE_LENGTH];
+            Entropy.nextBytes(serverNonce);
+            buffer.clear();
+            Wire.putChannelFrame(buffer, Wire.CHANNEL_ACCEPT, serverNonce);
+            Wire.writeFrames(out, buffer);
+            out.flush();
+            // records are flushed on purpose, waiting to coalesce them only adds latency
+            socket.setTcpNoDelay(true);
+            // the channel of the socket allows gathering writes from direct buffers
+            ReadableByteChannel input = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+            WritableByteChannel output = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            channel = new DataChannel(input, output, sessionKey, clientNonce, serverNonce, false);
+        } catch (IOException e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to open a data channel with: {}", clientAddress);
+            return;
+        }
+        /* Documentation */
+        log.debug("Data Channel Opened with: {}", clientAddress);
     }
 
     /**
-     * A function to calculate session key
-     * @param clientPublicKey the client's public key
-     * @param privateKey the server's private session key
-     * @return the session key
+     * A utility to communicate with client
+     * Every message received on the data channel is sent back, the
+     * answers are flushed once no more received messages are buffered
+     * so a burst of messages is answered with a few records
      */
-    private static BigInteger calcSessionKey(BigInteger clientPublicKey, BigInteger privateKey) {
-        return clientPublicKey.modPow(privateKey, P);
+    private void communicate() {
+        long messages = 0;
+        try {
+            ByteBuffer message;
+            while ((message = channel.receive()) != null) {
+                context.deadlines.idle(deadline);
+                channel.send(message);
+                messages++;
+                if (!channel.hasBuffered())
+                    channel.flush();
+            }
+            channel.close();
+        } catch (ProtocolException e) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid data channel record from {}: {}", clientAddress, e.getMessage());
+            return;
+        } catch (IOException e) {
+            if (!expired) {
+                metrics.failure(Failure.IO);
+                log.warn("Data channel with {} failed: {}", clientAddress, e.getMessage());
+            }
+            return;
+        }
+        /* Documentation */
+        log.debug("Data Channel Closed with: {} after {} messages", clientAddress, messages);
     }
 }
@@ -0,0 +1,90 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram many threads record into without contending
+ *
+ * Every bucket is a LongAdder. Values below 16 microseconds have their own
+ * bucket, above that every power of two is split into 8 buckets, so a
+ * reported percentile is within about 12% of the recorded value.
+ */
+final class ConcurrentHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final LongAdder[] counts = new LongAdder[64 * SUB_BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    ConcurrentHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the latency to record in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[index(micros)].increment();
+        total.increment();
+        sum.add(micros);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return the mean of the recorded values in microseconds
+     */
+    long mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * The percentile of the values recorded so far, values recorded
+     * while this runs may or may not be included
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the percentile in microseconds
+     */
+    long percentile(double quantile) {
+        long[] snapshot = new long[counts.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return highestValue(i);
+        }
+        return highestValue(snapshot.length - 1);
+    }
+
+    private static int index(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits <= SUB_BUCKET_BITS + 1)
+            return (int) value;
+        int shift = bits - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index - shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
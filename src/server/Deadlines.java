@@ -0,0 +1,96 @@
+package server;
+
+/**
+ * The time limits of every connection, kept by one shared TimerWheel
+ *
+ * handshake - from accept until the first key exchange or resumption is
+ * answered, -Ddhke.handshakeTimeout=[ms] (default 10000)
+ * idle - between requests once a session exists and between the messages
+ * of a data channel, -Ddhke.idleTimeout=[ms] (default 120000)
+ * read - a request whose first byte arrived must arrive completely,
+ * -Ddhke.readTimeout=[ms] (default 5000), the socket read timeout of the
+ * thread modes
+ * A limit of 0 disables it. A connection past its deadline is closed, so a
+ * slow or dead client costs no thread time while it waits.
+ * -Ddhke.timer.tick=[ms] (default 100) is the resolution of the deadlines.
+ */
+final class Deadlines {
+    /** About 70 years, a deadline that never comes */
+    private static final long NEVER = Long.MAX_VALUE / 4;
+    private final TimerWheel wheel;
+    private final long handshakeNanos;
+    private final long idleNanos;
+    final int readTimeout;
+
+    /**
+     * @param handshakeTimeout milliseconds for the first exchange, 0 for no limit
+     * @param idleTimeout milliseconds between requests, 0 for no limit
+     * @param readTimeout milliseconds for a started request, 0 for no limit
+     * @param tick milliseconds between checks of the deadlines
+     */
+    Deadlines(long handshakeTimeout, long idleTimeout, int readTimeout, long tick) {
+        this.handshakeNanos = handshakeTimeout > 0 ? handshakeTimeout * 1_000_000L : NEVER;
+        this.idleNanos = idleTimeout > 0 ? idleTimeout * 1_000_000L : NEVER;
+        this.readTimeout = Math.max(0, readTimeout);
+        // 512 ticks cover a turn of the wheel of 51.2 seconds at the default tick
+        this.wheel = new TimerWheel("deadline-timer", tick, 512);
+    }
+
+    /**
+     * Creates the limits configured by the system properties
+     * @return the limits, not yet started
+     */
+    static Deadlines fromProperties() {
+        return new Deadlines(Long.getLong("dhke.handshakeTimeout", 10000), Long.getLong("dhke.idleTimeout", 120000),
+                Integer.getInteger("dhke.readTimeout", 5000), Long.getLong("dhke.timer.tick", 100));
+    }
+
+    /**
+     * Watches a new connection, the handshake deadline counts from accept
+     * @param onExpiry closes the connection, runs on the timer thread
+     * @param acceptedAt the System.nanoTime() the connection was accepted at
+     * @return the deadline of the connection
+     */
+    TimerWheel.Timeout handshake(Runnable onExpiry, long acceptedAt) {
+        return wheel.schedule(onExpiry, handshakeNanos - (System.nanoTime() - acceptedAt));
+    }
+
+    /**
+     * Gives the connection another idle period
+     * @param deadline the deadline of the connection
+     */
+    void idle(TimerWheel.Timeout deadline) {
+        deadline.reset(idleNanos);
+    }
+
+    /**
+     * Runs a task on the timer thread after a delay
+     * @param task a short task
+     * @param delayMillis the delay in milliseconds
+     * @return the handle to cancel the task
+     */
+    TimerWheel.Timeout after(Runnable task, long delayMillis) {
+        return wheel.schedule(task, delayMillis * 1_000_000L);
+    }
+
+    /**
+     * Starts the timer thread
+     */
+    void start() {
+        wheel.start();
+    }
+
+    /**
+     * Stops the timer thread
+     */
+    void stop() {
+        wheel.stop();
+    }
+
+    /**
+     * @return the statistics of the deadlines
+     */
+    String stats() {
+        return "Deadlines watched: " + wheel.size() + ", expired: " + wheel.expired();
+    }
+}
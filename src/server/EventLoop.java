@@ -0,0 +1,253 @@
+package server;
+
+import log.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread multiplexing many client connections with a Selector
+ * Connections are handed over by the accepting thread through accept(),
+ * or the loop accepts them itself from a listener of its own
+ */
+final class EventLoop extends Thread {
+    private static final Log log = Log.get(EventLoop.class);
+    /** Connections accepted per wake up, so a storm of connects does not starve the clients */
+    private static final int ACCEPT_BATCH = 64;
+    private final Selector selector;
+    private final ServerContext context;
+    private final Queue<Accepted> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> expired = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A connection waiting to be registered with the selector
+     */
+    private static final class Accepted {
+        final SocketChannel channel;
+        final long acceptedAt;
+
+        Accepted(SocketChannel channel, long acceptedAt) {
+            this.channel = channel;
+            this.acceptedAt = acceptedAt;
+        }
+    }
+
+    EventLoop(int index, ServerContext context) throws IOException {
+        super("event-loop-" + index);
+        this.context = context;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * An accepted channel waiting for admission
+     */
+    private final class Admitting implements Admission.Candidate {
+        private final SocketChannel channel;
+        private final long acceptedAt = System.nanoTime();
+
+        Admitting(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void admit() {
+            pending.add(new Accepted(channel, acceptedAt));
+            // also on the loop itself, a released slot admits after registerPending ran this round
+            selector.wakeup();
+        }
+
+        @Override
+        public void reject(int retryAfter) {
+            try {
+                // still in blocking mode, the frame fits the empty send buffer
+                channel.write(Admission.busyFrame(context.serverId, retryAfter));
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                // the client is gone already
+            }
+            log.debug("Shed connection of: {}", channel.socket().getRemoteSocketAddress());
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to Close the Connection");
+            }
+        }
+    }
+
+    /**
+     * Hands a freshly accepted connection to this loop through admission control
+     * @param channel the accepted client channel
+     */
+    void accept(SocketChannel channel) {
+        context.admission.offer(new Admitting(channel));
+    }
+
+    /**
+     * Makes the loop accept the connections of the listener itself,
+     * called before the loop is started
+     * @param listener a bound listening channel
+     * @throws IOException if the listener cannot be registered
+     */
+    void listen(ServerSocketChannel listener) throws IOException {
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands a connection past its deadline back to this loop to be closed,
+     * called by the timer thread
+     * @param connection the connection owned by this loop
+     */
+    void expire(NioConnection connection) {
+        expired.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on this loop, called by the pipeline threads
+     * to hand the keys of a batch back to its connection
+     * @param task the task, run after the next select
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop and closes every connection it still owns
+     */
+    void shutdown() {
+        interrupt();
+        selector.wakeup();
+    }
+
+    /**
+     * The loop of selecting ready connections and advancing
+     * their key exchange
+     */
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                selector.select();
+                registerPending();
+                closeExpired();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        acceptPending((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.warn("Event loop stopped: {}", e.getMessage());
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null)
+                ((NioConnection) key.attachment()).close();
+            else
+                closeListener((ServerSocketChannel) key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the selector: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Accepts the connections waiting on the own listener
+     * @param listener the listener of this loop
+     */
+    private void acceptPending(ServerSocketChannel listener) {
+        for (int i = 0; i < ACCEPT_BATCH; i++) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                // out of descriptors or an aborted connect, the shard keeps serving
+                log.warn("Unable to accept request: {}", e.getMessage());
+                break;
+            }
+            if (channel == null)
+                break;
+            log.debug("Connection request from: {}", channel.socket().getRemoteSocketAddress());
+            accept(channel);
+        }
+        // the admitted ones are registered now, the ones left are taken after the clients of this round
+        registerPending();
+    }
+
+    private void closeListener(ServerSocketChannel listener) {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the listener: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the connections handed over since the last select
+     */
+    private void registerPending() {
+        Accepted accepted;
+        while ((accepted = pending.poll()) != null) {
+            SocketChannel channel = accepted.channel;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key, this, context, accepted.acceptedAt);
+                key.attach(connection);
+                connection.watch(context.deadlines.handshake(() -> expire(connection), accepted.acceptedAt));
+            } catch (IOException e) {
+                log.warn("Unable to register connection");
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connections whose deadline passed since the last select
+     */
+    private void closeExpired() {
+        NioConnection connection;
+        while ((connection = expired.poll()) != null) {
+            connection.expire();
+        }
+    }
+
+    /**
+     * Runs the tasks handed over since the last select
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import crypto.DhGroup;
+import crypto.Group;
+
+import java.math.BigInteger;
+
+/**
+ * The Diffie-Hellman calculations done by the server
+ * shared by every connection engine (thread per client or event loop)
+ * Clients that do not negotiate a group use the RFC 5114 1024-bit group.
+ */
+final class KeyExchange {
+    static final DhGroup LEGACY = Group.MODP_1024;
+    static final BigInteger P = LEGACY.p();
+    static final BigInteger G = LEGACY.g();
+    static final int KEY_WIDTH = LEGACY.keyWidth();
+
+    private KeyExchange() {
+        // empty constructor
+    }
+
+    /**
+     * A utility function
+     * @return A random key that will be private session key
+     * for this session with this client
+     */
+    static BigInteger calcPrivateSessionKey() {
+        return LEGACY.generatePrivateKey();
+    }
+
+    /**
+     * To calculate the public key of server
+     * @param privateKey the private key of server
+     * @return the calculated public key
+     */
+    static BigInteger calcPublicKey(BigInteger privateKey) {
+        return LEGACY.publicKey(privateKey);
+    }
+
+    /**
+     * A function to calculate session key
+     * @param clientPublicKey the client's public key
+     * @param privateKey the server's private session key
+     * @return the session key
+     * @throws IllegalArgumentException if the client's key is not valid
+     */
+    static BigInteger calcSessionKey(BigInteger clientPublicKey, BigInteger privateKey) {
+        return LEGACY.sharedSecret(clientPublicKey, privateKey);
+    }
+
+    /**
+     * Builds the reply sent back to the client
+     * format of key change
+     * "server-id public-key-server"
+     * @param serverId the id of this server
+     * @param publicKey the public key of server
+     * @return the message to be sent
+     */
+    static String buildMessage(String serverId, BigInteger publicKey) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(serverId);
+        buf.append(' ');
+        buf.append(publicKey.toString());
+        buf.append('\n');
+        return buf.toString();
+    }
+}
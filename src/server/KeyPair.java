@@ -0,0 +1,35 @@
+package server;
+
+import crypto.Group;
+
+import java.math.BigInteger;
+
+/**
+ * An ephemeral key pair of the server, x and g^x
+ */
+final class KeyPair {
+    final Group group;
+    final BigInteger privateKey;
+    final BigInteger publicKey;
+
+    KeyPair(Group group, BigInteger privateKey, BigInteger publicKey) {
+        this.group = group;
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    /**
+     * Generates a fresh pair on the calling thread
+     * @param group the group of the keys
+     * @param metrics records the time of both halves
+     * @return the new key pair
+     */
+    static KeyPair generate(Group group, ServerMetrics metrics) {
+        long started = System.nanoTime();
+        BigInteger privateKey = group.generatePrivateKey();
+        started = metrics.record(ServerMetrics.Phase.PRIVATE_KEY, started);
+        BigInteger publicKey = group.publicKey(privateKey);
+        metrics.record(ServerMetrics.Phase.PUBLIC_KEY, started);
+        return new KeyPair(group, privateKey, publicKey);
+    }
+}
@@ -0,0 +1,184 @@
+package server;
+
+import crypto.Group;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of key pairs generated ahead of time by background threads
+ *
+ * The producers fill the queue up to the high watermark and then sleep
+ * until a take() drops it to the low watermark. When the pool is drained
+ * the key pair is generated inline, so a client never waits for a producer.
+ */
+final class KeyPairPool {
+    private final Queue<KeyPair> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Thread[] producers;
+    private final Object signal = new Object();
+    private final Group group;
+    private final ServerMetrics metrics;
+    private volatile boolean idle;
+    private volatile boolean running = true;
+    private final LongAdder produced = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final long started = System.nanoTime();
+
+    /**
+     * @param group the group of the key pairs
+     * @param lowWatermark producers are woken up at this size
+     * @param highWatermark producers stop at this size, 0 disables the pool
+     * @param producers number of background threads
+     * @param metrics records the generation and take times
+     */
+    KeyPairPool(Group group, int lowWatermark, int highWatermark, int producers, ServerMetrics metrics) {
+        this.group = group;
+        this.metrics = metrics;
+        this.highWatermark = Math.max(0, highWatermark);
+        this.lowWatermark = Math.min(Math.max(0, lowWatermark), this.highWatermark);
+        this.producers = new Thread[this.highWatermark == 0 ? 0 : Math.max(1, producers)];
+        for (int i = 0; i < this.producers.length; i++) {
+            this.producers[i] = new Thread(this::produce, "key-pair-producer-" + group + "-" + i);
+            this.producers[i].setDaemon(true);
+            this.producers[i].setPriority(Thread.MIN_PRIORITY);
+        }
+    }
+
+    /**
+     * Creates a pool for every group, the groups of clients that do not
+     * negotiate included, configured by the system properties
+     * dhke.keyPool.high (default 256, 0 disables the pools),
+     * dhke.keyPool.low (default a quarter of high) and
+     * dhke.keyPool.producers (default 1 per group)
+     * @param groups the groups the server negotiates
+     * @param metrics records the generation and take times
+     * @return the pools by group, not yet started
+     */
+    static Map<Group, KeyPairPool> fromProperties(List<Group> groups, ServerMetrics metrics) {
+        return fromProperties(groups, 1, metrics);
+    }
+
+    /**
+     * Creates the pools of one of several shards, the configured watermarks
+     * are split between the shards
+     * @param groups the groups the server negotiates
+     * @param shards the number of shards sharing the configured size
+     * @param metrics records the generation and take times
+     * @return the pools by group, not yet started
+     */
+    static Map<Group, KeyPairPool> fromProperties(List<Group> groups, int shards, ServerMetrics metrics) {
+        int configured = Integer.getInteger("dhke.keyPool.high", 256);
+        int high = configured == 0 ? 0 : Math.max(1, configured / shards);
+        int low = Integer.getInteger("dhke.keyPool.low", configured / 4) / shards;
+        int producers = Integer.getInteger("dhke.keyPool.producers", 1);
+        return forGroups(groups, low, high, producers, metrics);
+    }
+
+    /**
+     * Creates the same pool for every group
+     * @param groups the groups the server negotiates
+     * @param lowWatermark producers are woken up at this size
+     * @param highWatermark producers stop at this size, 0 disables the pools
+     * @param producers number of background threads per group
+     * @param metrics records the generation and take times
+     * @return the pools by group, not yet started
+     */
+    static Map<Group, KeyPairPool> forGroups(List<Group> groups, int lowWatermark, int highWatermark, int producers,
+                                             ServerMetrics metrics) {
+        Map<Group, KeyPairPool> pools = new LinkedHashMap<>();
+        pools.put(KeyExchange.LEGACY, new KeyPairPool(KeyExchange.LEGACY, lowWatermark, highWatermark, producers, metrics));
+        for (Group group : groups) {
+            pools.computeIfAbsent(group, g -> new KeyPairPool(g, lowWatermark, highWatermark, producers, metrics));
+        }
+        return pools;
+    }
+
+    /**
+     * Starts the background producers
+     */
+    void start() {
+        for (Thread producer : producers) {
+            producer.start();
+        }
+    }
+
+    /**
+     * Stops the background producers, key pairs are then generated inline
+     */
+    void stop() {
+        running = false;
+        wakeProducers();
+    }
+
+    /**
+     * Takes a ready key pair or generates one when the pool is drained
+     * @return an unused key pair
+     */
+    KeyPair take() {
+        long started = System.nanoTime();
+        KeyPair pair = queue.poll();
+        if (pair != null) {
+            hits.increment();
+            if (size.decrementAndGet() <= lowWatermark && idle)
+                wakeProducers();
+            metrics.record(ServerMetrics.Phase.KEY_PAIR, started);
+            return pair;
+        }
+        misses.increment();
+        if (idle)
+            wakeProducers();
+        pair = KeyPair.generate(group, metrics);
+        metrics.record(ServerMetrics.Phase.KEY_PAIR, started);
+        return pair;
+    }
+
+    /**
+     * @return a one line summary of the pool state
+     */
+    String stats() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return String.format("Key pool %s size: %d, produced: %d (%.1f/s), hits: %d, misses: %d",
+                group, size.get(), produced.sum(), produced.sum() / seconds, hits.sum(), misses.sum());
+    }
+
+    /**
+     * The loop of a producer thread
+     */
+    private void produce() {
+        while (running) {
+            if (size.get() >= highWatermark) {
+                synchronized (signal) {
+                    idle = true;
+                    // re-check after publishing idle so a take() does not miss us
+                    while (running && size.get() > lowWatermark) {
+                        try {
+                            signal.wait(1000);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    idle = false;
+                }
+                continue;
+            }
+            queue.add(KeyPair.generate(group, metrics));
+            size.incrementAndGet();
+            produced.increment();
+        }
+    }
+
+    private void wakeProducers() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import crypto.Group;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server on an ephemeral loopback port running every
+ * client on a ClientThread, for benchmarks of whole handshakes
+ * and for replays of recorded traffic within one process
+ */
+public final class LoopbackServer {
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ServerContext context;
+    private final Thread acceptor;
+
+    /**
+     * @param poolSize the high watermark of the key pair pool, 0 for none
+     */
+    public LoopbackServer(int poolSize) throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        ServerMetrics metrics = new ServerMetrics("bench-server", 0);
+        Deadlines deadlines = Deadlines.fromProperties();
+        // every connection is served at once, the benchmark controls the load
+        context = new ServerContext("bench-server", metrics, Group.all(),
+                KeyPairPool.forGroups(Group.all(), poolSize / 4, poolSize, 1, metrics), SessionCache.fromProperties(),
+                deadlines, new Admission(0, 0, 0, 0, metrics, deadlines), TranscriptRecorder.NONE,
+                BatchExecutor.fromProperties());
+        context.start();
+        acceptor = new Thread(this::accept, "loopback-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the statistics of the server
+     */
+    public String stats() {
+        return context.stats();
+    }
+
+    /**
+     * Stops accepting and lets running clients finish
+     */
+    public void close() throws IOException {
+        server.close();
+        executor.shutdown();
+        context.stop();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(new ClientThread(socket, context));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package server;
+
+import crypto.Group;
+import log.Log;
+import protocol.Frame;
+import protocol.Wire;
+import server.ServerMetrics.Failure;
+import server.ServerMetrics.Phase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The state of a single client connection driven by an EventLoop
+ *
+ * It follows the same steps as ClientThread.keyExchange but never blocks.
+ * Requests are accumulated in a reusable buffer until a complete frame is
+ * available, either a binary frame (see Wire) or the one written by
+ * DataOutputStream.writeUTF (2 bytes length followed by the string),
+ * and the replies are encoded into a second reusable buffer.
+ * The encrypted data channel needs blocking reads and writes of whole
+ * records, a channel open is refused and the connection stays open.
+ * The keys of a pipelined batch are computed by the pipeline threads of
+ * the server, the connection stops reading until the event loop gets them
+ * back and the loop serves its other connections meanwhile.
+ */
+final class NioConnection {
+    private static final Log log = Log.get(NioConnection.class);
+    private static final int MAX_BATCH = 256;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final String clientAddress;
+    private final ServerContext context;
+    private final ServerMetrics metrics;
+    private final long registeredAt;
+    private boolean firstRequest = true;
+    private final ByteBuffer input = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final ByteBuffer output = ByteBuffer.allocate(Wire.MAX_FRAME_LENGTH);
+    private final Frame frame = new Frame();
+    private BigInteger sessionKey;
+    private final Streams streams = new Streams();
+    /** The stream of the request being served, -1 if it came on its own */
+    private int stream = -1;
+    private TimerWheel.Timeout deadline;
+    private boolean holdsSlot = true;
+    /** A pipelined batch is on the pipeline threads */
+    private boolean computing;
+    private final int pipelinedReplyLength;
+    private final TranscriptRecorder.Recording recording;
+
+    /**
+     * @param channel the accepted client channel
+     * @param key the registration of the channel
+     * @param loop the event loop owning the channel
+     * @param context the state shared by every connection
+     * @param acceptedAt the System.nanoTime() the channel was accepted at
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, ServerContext context, long acceptedAt) {
+        this.channel = channel;
+        this.context = context;
+        this.metrics = context.metrics;
+        this.registeredAt = metrics.record(Phase.ACCEPT, acceptedAt);
+        metrics.accepted();
+        this.key = key;
+        this.loop = loop;
+        this.clientAddress = channel.socket().getRemoteSocketAddress().toString();
+        this.recording = context.recorder.open();
+        this.pipelinedReplyLength = Wire.HEADER_LENGTH + 4 + 2
+                + context.serverId.getBytes(StandardCharsets.UTF_8).length + 2 + KeyExchange.KEY_WIDTH;
+    }
+
+    /**
+     * @param deadline the deadline of the connection, from accept until the first exchange
+     */
+    void watch(TimerWheel.Timeout deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Closes the connection once its deadline passed,
+     * called by the event loop
+     */
+    void expire() {
+        if (!key.isValid())
+            return;
+        metrics.failure(Failure.TIMEOUT);
+        log.warn("Connection of {} timed out", clientAddress);
+        close();
+    }
+
+    /**
+     * Called by the event loop when the channel has data to read
+     */
+    void onReadable() {
+        try {
+            int start = input.position();
+            int read = channel.read(input);
+            if (read < 0) {
+                close();
+                return;
+            }
+            recording.data(input, start, read);
+            if (firstRequest && input.position() > 0) {
+                metrics.record(Phase.FIRST_BYTE, registeredAt);
+                firstRequest = false;
+            }
+        } catch (IOException e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to read from: {}", clientAddress);
+            close();
+            return;
+        }
+        serve();
+    }
+
+    /**
+     * Handles the requests in the input buffer and writes the replies
+     */
+    private void serve() {
+        try {
+            input.flip();
+            try {
+                processRequests();
+            } finally {
+                input.compact();
+            }
+        } catch (ProtocolException e) {
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid Key Exchange from {}: {}", clientAddress, e.getMessage());
+            close();
+            return;
+        } catch (IOException e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to read from: {}", clientAddress);
+            close();
+            return;
+        }
+        if (output.position() > 0)
+            onWritable();
+    }
+
+    /**
+     * Called by the event loop when the replies can be written
+     */
+    void onWritable() {
+        output.flip();
+        long writeStarted = System.nanoTime();
+        try {
+            channel.write(output);
+        } catch (IOException e) {
+            metrics.failure(Failure.IO);
+            log.warn("Unable to send keys back to: {}", clientAddress);
+            close();
+            return;
+        } finally {
+            output.compact();
+        }
+        metrics.record(Phase.WRITE, writeStarted);
+        if (!key.isValid())
+            return;
+        if (computing) {
+            // reading waits for the keys of the batch
+            key.interestOps(output.position() > 0 ? SelectionKey.OP_WRITE : 0);
+        } else if (output.position() > 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+            // requests left waiting for room in the output buffer
+            if (input.position() > 0)
+                onReadable();
+        }
+    }
+
+    /**
+     * Handles every complete request in the input buffer
+     * while there is room for its reply
+     */
+    private void processRequests() throws IOException {
+        while (!computing && input.hasRemaining() && output.remaining() >= Wire.MAX_FRAME_LENGTH / 2) {
+            int start = input.position();
+            if ((input.get(start) & 0xFF) == Wire.MAGIC) {
+                if (Wire.frameLength(input) < 0)
+                    return;
+                Wire.getFrame(input, frame);
+                stream = frame.stream();
+                if (stream >= 0 && !Streams.carries(frame))
+                    throw new ProtocolException("Unexpected frame type " + frame.type() + " on stream " + stream);
+                int replyStart = output.position();
+                if (frame.type() == Wire.KEY_REQUEST)
+                    keyExchange(KeyExchange.LEGACY, frame.id(), frame.key(), Wire.KEY_RESPONSE, 0);
+                else if (frame.type() == Wire.TICKET_REQUEST)
+                    keyExchange(KeyExchange.LEGACY, frame.id(), frame.key(), Wire.TICKET_RESPONSE, 0);
+                else if (frame.type() == Wire.PIPELINED_REQUEST)
+                    pipelined();
+                else if (frame.type() == Wire.GROUP_REQUEST)
+                    negotiate();
+                else if (frame.type() == Wire.RESUME_REQUEST)
+                    resume();
+                else if (frame.type() == Wire.CHANNEL_OPEN)
+                    refuseChannel();
+                else
+                    throw new ProtocolException("Unexpected frame type " + frame.type());
+                if (stream >= 0)
+                    Wire.wrapStream(output, replyStart, stream);
+            } else {
+                if (input.remaining() < 2)
+                    return;
+                int length = 2 + (input.getShort(start) & 0xFFFF);
+                if (length > input.capacity())
+                    throw new ProtocolException("Message too long");
+                if (input.remaining() < length)
+                    return;
+                String[] clientInfo = new DataInputStream(
+                        new ByteArrayInputStream(input.array(), start, length)).readUTF().split("\\s+");
+                input.position(start + length);
+                stream = -1;
+                if (clientInfo.length != 2)
+                    throw new ProtocolException("Invalid Key Exchange");
+                BigInteger clientKey;
+                try {
+                    clientKey = new BigInteger(clientInfo[1]);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid keys provided");
+                }
+                keyExchange(KeyExchange.LEGACY, clientInfo[0], clientKey, (byte) 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Handles the group request in the current frame, a key exchange
+     * when the key is in the preferred group, otherwise a retry
+     */
+    private void negotiate() throws IOException {
+        Group group = context.negotiate(frame.offered());
+        if (group != null && group.id() == frame.group()) {
+            keyExchange(group, frame.id(), frame.key(), Wire.GROUP_RESPONSE, 0);
+            return;
+        }
+        Wire.putGroupRetry(output, group == null ? 0 : group.id(), context.serverId);
+        if (group == null) {
+            // the client closes the connection after the answer
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("No common group with: {}", clientAddress);
+            return;
+        }
+        /* Documentation */
+        log.debug("Asked {} for a key in {}", clientAddress, group);
+    }
+
+    /**
+     * Handles a complete key exchange request
+     * and appends the reply for the client
+     * @param group the group of the keys
+     * @param clientId the id of the client
+     * @param clientKey the public key of the client
+     * @param replyType the type of the binary reply, 0 for a writeUTF message
+     * @param sequence the sequence number of a pipelined request
+     * @throws ProtocolException if the client's key is not valid
+     */
+    private void keyExchange(Group group, String clientId, BigInteger clientKey, byte replyType, int sequence) throws IOException {
+        /* Documentation */
+        log.debug("Key Exchange Request Received form: {}", clientAddress);
+
+        long started = System.nanoTime();
+        KeyPair keyPair = context.keyPairs(group).take();
+        BigInteger privateKey = keyPair.privateKey;
+        BigInteger publicKey = keyPair.publicKey;
+        byte[] ticket = null;
+        if (replyType == Wire.GROUP_RESPONSE) {
+            ticket = context.sessions.newTicket();
+            Wire.putGroupResponse(output, group.id(), context.serverId, publicKey, group.keyWidth(), ticket, context.sessions.lifetime());
+        } else if (replyType == Wire.TICKET_RESPONSE) {
+            ticket = context.sessions.newTicket();
+            Wire.putTicketFrame(output, context.serverId, publicKey, KeyExchange.KEY_WIDTH, ticket, context.sessions.lifetime());
+        } else if (replyType != 0) {
+            Wire.putKeyFrame(output, replyType, sequence, context.serverId, publicKey, KeyExchange.KEY_WIDTH);
+        } else {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            new DataOutputStream(message).writeUTF(KeyExchange.buildMessage(context.serverId, publicKey));
+            output.put(message.toByteArray());
+        }
+        long modPowStarted = System.nanoTime();
+        BigInteger key;
+        try {
+            key = group.sharedSecret(clientKey, privateKey);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Invalid keys provided: " + e.getMessage());
+        }
+        metrics.record(Phase.SESSION_KEY, modPowStarted);
+        if (ticket != null)
+            context.sessions.put(ticket, clientId, key);
+        established(key);
+        metrics.record(Phase.HANDSHAKE, started);
+        metrics.handshake();
+        /* Documentation */
+        log.debug("Session Key Established with: {} in {}", clientAddress, group);
+        log.trace("Session Key: {}", Log.secret(key));
+    }
+
+    /**
+     * Hands the pipelined request in the current frame and every complete
+     * pipelined request behind it that has room for its reply to the
+     * pipeline threads, the connection stops reading until the keys are back
+     * @throws ProtocolException if a request behind it is not valid
+     */
+    private void pipelined() throws IOException {
+        int room = Math.min(MAX_BATCH, output.remaining() / pipelinedReplyLength);
+        int[] sequences = new int[room];
+        BigInteger[] clientKeys = new BigInteger[room];
+        int count = 0;
+        while (true) {
+            sequences[count] = frame.sequence();
+            clientKeys[count] = frame.key();
+            count++;
+            // only take requests that are already here, never wait for more
+            int next = input.position();
+            if (count == room || input.remaining() < Wire.HEADER_LENGTH || (input.get(next) & 0xFF) != Wire.MAGIC
+                    || input.get(next + 2) != Wire.PIPELINED_REQUEST || Wire.frameLength(input) < 0)
+                break;
+            Wire.getFrame(input, frame);
+        }
+        long started = System.nanoTime();
+        /* Documentation */
+        log.debug("{} Pipelined Key Exchange Requests Received form: {}", count, clientAddress);
+
+        int batch = count;
+        BigInteger[] publicKeys = new BigInteger[count];
+        BigInteger[] sessionKeys = new BigInteger[count];
+        KeyPairPool keyPairs = context.keyPairs(KeyExchange.LEGACY);
+        computing = true;
+        key.interestOps(0);
+        context.batches.submit(count, i -> {
+            KeyPair keyPair = keyPairs.take();
+            publicKeys[i] = keyPair.publicKey;
+            long modPowStarted = System.nanoTime();
+            sessionKeys[i] = KeyExchange.calcSessionKey(clientKeys[i], keyPair.privateKey);
+            metrics.record(Phase.SESSION_KEY, modPowStarted);
+        }).whenComplete((done, failure) -> loop.execute(
+                () -> finishBatch(sequences, publicKeys, sessionKeys, batch, started, failure)));
+    }
+
+    /**
+     * Appends the replies of a batch once its keys are back and goes on
+     * with the requests behind it, run by the event loop
+     * @param sequences the sequence numbers of the requests
+     * @param publicKeys the public keys of the replies
+     * @param sessionKeys the keys established
+     * @param count number of requests in the batch
+     * @param started the System.nanoTime() the batch was received at
+     * @param failure the failure of the batch, null if none
+     */
+    private void finishBatch(int[] sequences, BigInteger[] publicKeys, BigInteger[] sessionKeys, int count,
+                             long started, Throwable failure) {
+        computing = false;
+        if (!key.isValid())
+            return;
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            metrics.failure(Failure.INVALID_REQUEST);
+            log.warn("Invalid keys provided by {}: {}", clientAddress, cause.getMessage());
+            close();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            Wire.putKeyFrame(output, Wire.PIPELINED_RESPONSE, sequences[i], context.serverId, publicKeys[i], KeyExchange.KEY_WIDTH);
+        }
+        stream = -1;
+        established(sessionKeys[count - 1]);
+        metrics.record(Phase.HANDSHAKE, started);
+        metrics.handshakes(count);
+        /* Documentation */
+        log.debug("{} Session Keys Established with: {}", count, clientAddress);
+        serve();
+    }
+
+    /**
+     * Resumes the session of the ticket in the current frame
+     * and appends the answer for the client
+     */
+    private void resume() {
+        BigInteger resumed = context.sessions.resume(frame.ticket(), frame.id());
+        Wire.putResumeReply(output, resumed != null, context.serverId);
+        /* Documentation */
+        if (resumed != null) {
+            metrics.resumed();
+            established(resumed);
+            log.debug("Session Resumed of: {}", clientAddress);
+        } else {
+            log.debug("Session Resumption Rejected of: {}", clientAddress);
+        }
+    }
+
+    /**
+     * Answers a data channel request, which only the thread modes serve
+     */
+    private void refuseChannel() {
+        Wire.putChannelRefused(output, context.serverId);
+        /* Documentation */
+        log.debug("Data Channel Refused to: {}", clientAddress);
+    }
+
+    /**
+     * Keeps the key of the current request, per stream if it came in one,
+     * the connection has a session from now on
+     * @param key the established or resumed key
+     */
+    private void established(BigInteger key) {
+        if (stream >= 0)
+            streams.put(stream, key);
+        else
+            sessionKey = key;
+        releaseSlot();
+        context.deadlines.idle(deadline);
+    }
+
+    /**
+     * Frees the handshake slot of admission control once
+     * the connection has a session key or ends
+     */
+    private void releaseSlot() {
+        if (holdsSlot) {
+            holdsSlot = false;
+            context.admission.release();
+        }
+    }
+
+    /**
+     * Close the connection and cancel its registration
+     */
+    void close() {
+        releaseSlot();
+        recording.close();
+        if (deadline != null)
+            deadline.cancel();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Unable to Close the Connection");
+        }
+        /* Documentation */
+        log.debug("Connection Closed of: {}", clientAddress);
+    }
+}
@@ -1,13 +1,31 @@
 package server;
 
+import log.Log;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Server {
+    private static final Log log = Log.get(Server.class);
     private static String id;
     private static ServerSocket server;
+    private static ServerSocketChannel serverChannel;
+    private static String mode;
+    private static ExecutorService executor;
+    private static ServerContext context;
+    private static int port;
+    private static int backlog;
+    private static final AtomicInteger liveConnections = new AtomicInteger();
 
     private Server() {
         // Empty Constructor
@@ -16,45 +34,239 @@ public final class Server {
     /**
      * A function to check if the required command line arguments were passed or not
      * It also creates the socket for listening connections
+     * The optional third argument selects the mode of serving clients
+     * thread - a new thread for every client (default)
+     * nio - a few event loop threads multiplexing all clients
+     * virtual - a virtual thread for every client (a cached pool before Java 21)
+     * pool - a fixed pool of dhke.poolSize threads
+     * reuseport - dhke.shards event loops, each with its own SO_REUSEPORT listener
+     * The listen backlog is taken from the dhke.backlog property (default 50)
      * @param args command line arguments
      */
     private static void handleArgs(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Expected Server Id and Port Number");
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Expected Server Id, Port Number and optionally the mode (thread|nio|virtual|pool|reuseport)");
             System.exit(1);
         }
         id = args[0];
+        mode = args.length == 3 ? args[2] : "thread";
+        if (!mode.equals("thread") && !mode.equals("nio") && !mode.equals("virtual") && !mode.equals("pool")
+                && !mode.equals("reuseport")) {
+            System.out.println("Unknown mode: " + mode);
+            System.exit(1);
+        }
         server = null;
-        int port;
+        serverChannel = null;
         try {
             port = Integer.parseInt(args[1]);
         } catch (NumberFormatException e) {
             System.out.println("Port is not a valid number");
             return;
         }
+        backlog = Integer.getInteger("dhke.backlog", 50);
+        if (mode.equals("reuseport")) {
+            // every shard binds a listener of its own
+            return;
+        }
         // try creating a ServerSocket
         try {
-            server = new ServerSocket(port);
+            if (mode.equals("nio")) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(port), backlog);
+                serverChannel = channel;
+            } else {
+                // a channel backed socket, the data channel writes its records with gathering writes
+                server = ServerSocketChannel.open().bind(new InetSocketAddress(port), backlog).socket();
+            }
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
     }
 
+    /**
+     * Creates the executor running the clients for the selected mode
+     * @return the executor or null when every client gets its own platform thread
+     */
+    private static ExecutorService createExecutor() {
+        if (mode.equals("pool")) {
+            int size = Integer.getInteger("dhke.poolSize", 4 * Runtime.getRuntime().availableProcessors());
+            return Executors.newFixedThreadPool(Math.max(1, size));
+        }
+        if (mode.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads unavailable, using a cached thread pool");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        return null;
+    }
+
     /**
      * A function that handles a particular client
-     * This function opens a client and returns a thread
+     * This function runs the client on the executor or on a new thread
      * @param socket the socket representing a client
-     * @return thread created to handle client
+     * @return if the client could be handed over
      */
-    private static Thread handleConnection(Socket socket) {
-        System.out.println("Connection request from: " + socket.getRemoteSocketAddress().toString());
-        Thread th = new ClientThread(socket, id);
+    private static boolean handleConnection(Socket socket) {
+        log.debug("Connection request from: {}", socket.getRemoteSocketAddress());
+        ClientThread client = new ClientThread(socket, context);
+        Runnable task = () -> {
+            try {
+                client.run();
+            } finally {
+                liveConnections.decrementAndGet();
+            }
+        };
+        liveConnections.incrementAndGet();
         try {
-            th.start();
+            if (executor != null)
+                executor.execute(task);
+            else
+                new Thread(task).start();
         } catch (Exception e) {
-            return null;
+            liveConnections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * An accepted socket of the thread modes waiting for admission
+     */
+    private static final class SocketCandidate implements Admission.Candidate {
+        private final Socket socket;
+
+        SocketCandidate(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void admit() {
+            if (!handleConnection(socket)) {
+                System.out.println("The client connection refused unable to allocate a new thread");
+                close();
+                context.admission.release();
+            }
+        }
+
+        @Override
+        public void reject(int retryAfter) {
+            try {
+                ByteBuffer busy = Admission.busyFrame(id, retryAfter);
+                socket.getOutputStream().write(busy.array(), 0, busy.limit());
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                // the client is gone already
+            }
+            log.debug("Shed connection of: {}", socket.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves the clients with a fixed number of event loops
+     * The calling thread only accepts connections and hands them
+     * to the loops in round robin order
+     * The number of loops is taken from the dhke.eventLoops property
+     * and defaults to the number of available processors
+     */
+    private static void serveEventLoops() {
+        int loops = Integer.getInteger("dhke.eventLoops", Runtime.getRuntime().availableProcessors());
+        EventLoop[] eventLoops = new EventLoop[Math.max(1, loops)];
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(i, context);
+                eventLoops[i].start();
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to open an event loop: " + e.getMessage());
+            System.exit(1);
+        }
+        /* Documentation */
+        System.out.println("Server Started At: " + serverChannel.socket().getLocalPort() + " with " + eventLoops.length + " event loops");
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                System.out.println("Unable to accept request");
+                continue;
+            }
+            log.debug("Connection request from: {}", channel.socket().getRemoteSocketAddress());
+            eventLoops[next].accept(channel);
+            next = (next + 1) % eventLoops.length;
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        context.stop();
+    }
+
+    /**
+     * Serves the clients with dhke.shards (default the number of available
+     * processors) shards, each an event loop accepting from its own listener
+     * on the same port. The kernel spreads the connections over the listeners
+     * by SO_REUSEPORT, so no thread hands connections to another; every shard
+     * keeps its own key pools, metrics, deadlines and admission, only the
+     * session cache is shared so a session resumes on any shard.
+     */
+    private static void serveShards() {
+        int shards = Math.max(1, Integer.getInteger("dhke.shards", Runtime.getRuntime().availableProcessors()));
+        SessionCache sessions = SessionCache.fromProperties();
+        TranscriptRecorder recorder = TranscriptRecorder.fromProperties();
+        BatchExecutor batches = BatchExecutor.fromProperties();
+        ServerContext[] contexts = new ServerContext[shards];
+        EventLoop[] eventLoops = new EventLoop[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                contexts[i] = ServerContext.shard(id, i, shards, sessions, recorder, batches);
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    System.out.println("SO_REUSEPORT is not supported on this platform, use the nio mode");
+                    System.exit(1);
+                }
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listener.bind(new InetSocketAddress(port), backlog);
+                eventLoops[i] = new EventLoop(i, contexts[i]);
+                eventLoops[i].listen(listener);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Unable to open a shard: " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (ServerContext shard : contexts) {
+                System.out.println(shard.stats());
+            }
+        }));
+        for (int i = 0; i < shards; i++) {
+            contexts[i].start();
+            eventLoops[i].start();
+        }
+        /* Documentation */
+        System.out.println("Server Started At: " + port + " with " + shards + " shards");
+        for (EventLoop eventLoop : eventLoops) {
+            try {
+                eventLoop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ServerContext shard : contexts) {
+            shard.stop();
         }
-        return th;
     }
 
     /**
@@ -63,17 +275,32 @@ public final class Server {
      */
     public static void main(String[] args) {
         handleArgs(args);
+        if (mode.equals("reuseport")) {
+            serveShards();
+            return;
+        }
+        try {
+            context = ServerContext.fromProperties(id);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        context.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(context.stats())));
+        if (serverChannel != null) {
+            serveEventLoops();
+            return;
+        }
         if (server == null) {
             System.out.println("Unable to initiate a server");
             System.exit(1);
         }
-        ArrayList<Thread> clientThreads = new ArrayList<>();
+        executor = createExecutor();
         // server is ready
         /* Documentation */
-        System.out.println("Server Started At: " + server.getLocalPort());
-        int connections = 2;
+        System.out.println("Server Started At: " + server.getLocalPort() + " in " + mode + " mode");
         // The main loop to listen for connections
-        while (connections > 0) {
+        while (!server.isClosed()) {
             Socket socket = null;
             try {
                 socket = server.accept();
@@ -81,23 +308,20 @@ public final class Server {
                 System.out.println("Unable to accept request");
             }
             if (socket != null) {
-                Thread newClient = handleConnection(socket);
-                if(newClient != null)
-                    clientThreads.add(newClient);
-                else
-                    System.out.println("The client connection refused unable to allocate a new thread");
-                connections--;
+                context.admission.offer(new SocketCandidate(socket));
             } else {
                 System.out.println("Connection Error");
             }
         }
-        for(int i = 0; i < clientThreads.size(); i++){
+        if (executor != null) {
+            executor.shutdown();
             try {
-                clientThreads.get(i).join();
-            }catch (InterruptedException e){
-                System.out.println("A client thread was interrupted");
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                System.out.println("Interrupted while waiting for " + liveConnections.get() + " clients");
             }
         }
+        context.stop();
         // Close the server/ listening socket
         if (server != null) {
             try {
@@ -0,0 +1,140 @@
+package server;
+
+import crypto.Group;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state shared by every connection of a server
+ */
+final class ServerContext {
+    final String serverId;
+    final ServerMetrics metrics;
+    final List<Group> groups;
+    final SessionCache sessions;
+    final Deadlines deadlines;
+    final Admission admission;
+    final TranscriptRecorder recorder;
+    final BatchExecutor batches;
+    private final Map<Group, KeyPairPool> pools;
+
+    /**
+     * @param serverId the id of the server
+     * @param metrics the metrics of every connection
+     * @param groups the groups negotiated with clients, most preferred first
+     * @param pools the key pair pool of every group
+     * @param sessions the resumable sessions
+     * @param deadlines the time limits of every connection
+     * @param admission the limit of concurrent handshakes
+     * @param recorder records the handshakes of the clients
+     * @param batches computes the keys of pipelined batches
+     */
+    ServerContext(String serverId, ServerMetrics metrics, List<Group> groups, Map<Group, KeyPairPool> pools,
+                  SessionCache sessions, Deadlines deadlines, Admission admission, TranscriptRecorder recorder,
+                  BatchExecutor batches) {
+        this.serverId = serverId;
+        this.metrics = metrics;
+        this.groups = groups;
+        this.pools = pools;
+        this.sessions = sessions;
+        this.deadlines = deadlines;
+        this.admission = admission;
+        this.recorder = recorder;
+        this.batches = batches;
+    }
+
+    /**
+     * Creates the state configured by the system properties,
+     * the groups are listed by dhke.groups (default every group, the cheapest first)
+     * @param serverId the id of the server
+     * @return the context, not yet started
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    static ServerContext fromProperties(String serverId) {
+        ServerMetrics metrics = ServerMetrics.fromProperties(serverId);
+        List<Group> groups = Group.parse(System.getProperty("dhke.groups"));
+        Deadlines deadlines = Deadlines.fromProperties();
+        return new ServerContext(serverId, metrics, groups, KeyPairPool.fromProperties(groups, metrics),
+                SessionCache.fromProperties(), deadlines, Admission.fromProperties(metrics, deadlines),
+                TranscriptRecorder.fromProperties(), BatchExecutor.fromProperties());
+    }
+
+    /**
+     * Creates the state of one shard of a sharded server, configured by the
+     * same properties as fromProperties, with a share of the key pool size
+     * and metrics, deadlines and admission of its own
+     * @param serverId the id of the server
+     * @param shard the index of the shard
+     * @param shards the number of shards
+     * @param sessions the resumable sessions, shared so a session resumes on any shard
+     * @param recorder the recorder shared by every shard
+     * @param batches the pipeline threads shared by every shard
+     * @return the context, not yet started
+     * @throws IllegalArgumentException if a configured group is unknown
+     */
+    static ServerContext shard(String serverId, int shard, int shards, SessionCache sessions,
+                               TranscriptRecorder recorder, BatchExecutor batches) {
+        ServerMetrics metrics = ServerMetrics.fromProperties(serverId + "/shard-" + shard);
+        List<Group> groups = Group.parse(System.getProperty("dhke.groups"));
+        Deadlines deadlines = Deadlines.fromProperties();
+        return new ServerContext(serverId, metrics, groups, KeyPairPool.fromProperties(groups, shards, metrics),
+                sessions, deadlines, Admission.fromProperties(metrics, deadlines), recorder, batches);
+    }
+
+    /**
+     * @param group the group of a key exchange
+     * @return the pool of key pairs of the group
+     */
+    KeyPairPool keyPairs(Group group) {
+        return pools.get(group);
+    }
+
+    /**
+     * @param offered the ids of the groups a client supports
+     * @return the most preferred group the client supports, null if none
+     */
+    Group negotiate(byte[] offered) {
+        return Group.negotiate(groups, offered);
+    }
+
+    /**
+     * Starts the background work
+     */
+    void start() {
+        metrics.start();
+        deadlines.start();
+        for (KeyPairPool pool : pools.values()) {
+            pool.start();
+        }
+    }
+
+    /**
+     * Stops the background work
+     */
+    void stop() {
+        for (KeyPairPool pool : pools.values()) {
+            pool.stop();
+        }
+        deadlines.stop();
+        batches.stop();
+        sessions.close();
+        recorder.close();
+        metrics.stop();
+    }
+
+    /**
+     * @return the statistics of the shared state, one line each
+     */
+    String stats() {
+        StringBuilder out = new StringBuilder();
+        for (KeyPairPool pool : pools.values()) {
+            out.append(pool.stats()).append(System.lineSeparator());
+        }
+        out.append(sessions.stats()).append(System.lineSeparator());
+        out.append(deadlines.stats()).append(System.lineSeparator());
+        if (recorder.stats() != null)
+            out.append(recorder.stats()).append(System.lineSeparator());
+        return out.append(admission.stats()).append(System.lineSeparator()).append(metrics.snapshot()).toString();
+    }
+}
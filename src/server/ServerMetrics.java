@@ -0,0 +1,336 @@
+package server;
+
+import log.Log;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the handshake phases of one server
+ *
+ * Every connection thread records into the same instance, so all counters
+ * are LongAdders and the histograms are striped the same way. The values
+ * are published as attributes of a JMX MBean named
+ * dhke:type=ServerMetrics,name=[server id] and can be printed periodically
+ * with -Ddhke.metrics.interval=[seconds].
+ */
+final class ServerMetrics implements DynamicMBean {
+    private static final Log log = Log.get(ServerMetrics.class);
+    /**
+     * The measured phases of a connection
+     */
+    enum Phase {
+        /** waiting in the admission queue for a free handshake slot */
+        ADMISSION("admissionWait"),
+        /** from accept() returning until a thread starts serving the connection */
+        ACCEPT("accept"),
+        /** from serving the connection until the first byte of a request */
+        FIRST_BYTE("timeToFirstByte"),
+        /** blocked reading one request */
+        READ("readWait"),
+        /** generating a private key */
+        PRIVATE_KEY("privateKeyGeneration"),
+        /** g^x mod p of a new key pair */
+        PUBLIC_KEY("publicKeyModPow"),
+        /** taking a key pair from the pool, including inline generation */
+        KEY_PAIR("keyPairTake"),
+        /** y^x mod p of a session key */
+        SESSION_KEY("sessionKeyModPow"),
+        /** writing and flushing a response */
+        WRITE("writeFlush"),
+        /** a whole key exchange from the request to the session key */
+        HANDSHAKE("handshake");
+
+        final String attribute;
+
+        Phase(String attribute) {
+            this.attribute = attribute;
+        }
+    }
+
+    /**
+     * The reasons a key exchange fails
+     */
+    enum Failure {
+        /** malformed frame or public key */
+        INVALID_REQUEST("invalidRequest"),
+        /** the client did not send in time */
+        TIMEOUT("timeout"),
+        /** the connection failed */
+        IO("io");
+
+        final String attribute;
+
+        Failure(String attribute) {
+            this.attribute = attribute;
+        }
+    }
+
+    private static final String[] STATISTICS = {"count", "mean", "p50", "p99", "p999"};
+    private final String serverId;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder[] failures = new LongAdder[Failure.values().length];
+    private final ConcurrentHistogram[] latencies = new ConcurrentHistogram[Phase.values().length];
+    private final long interval;
+    private ObjectName name;
+    private Thread reporter;
+
+    /**
+     * @param serverId the id of the server, part of the MBean name
+     * @param interval seconds between printed snapshots, 0 for none
+     */
+    ServerMetrics(String serverId, long interval) {
+        this.serverId = serverId;
+        this.interval = interval;
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new ConcurrentHistogram();
+        }
+    }
+
+    /**
+     * Creates the metrics configured by the system properties
+     * dhke.metrics.interval (default 0, no periodic snapshots)
+     * @param serverId the id of the server
+     * @return the metrics, not yet registered
+     */
+    static ServerMetrics fromProperties(String serverId) {
+        return new ServerMetrics(serverId, Long.getLong("dhke.metrics.interval", 0));
+    }
+
+    /**
+     * Registers the MBean and starts the periodic snapshots
+     */
+    void start() {
+        try {
+            name = new ObjectName("dhke:type=ServerMetrics,name=" + ObjectName.quote(serverId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Unable to register metrics MBean: {}", e.getMessage());
+            name = null;
+        }
+        if (interval > 0) {
+            reporter = new Thread(this::report, "metrics-reporter");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    /**
+     * Unregisters the MBean and stops the periodic snapshots
+     */
+    void stop() {
+        if (reporter != null)
+            reporter.interrupt();
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Unable to unregister metrics MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void handshake() {
+        handshakes.increment();
+    }
+
+    /**
+     * @param count number of key exchanges completed at once
+     */
+    void handshakes(int count) {
+        handshakes.add(count);
+    }
+
+    void resumed() {
+        resumed.increment();
+    }
+
+    /**
+     * A connection waits in the admission queue
+     */
+    void queued() {
+        queued.increment();
+    }
+
+    /**
+     * A connection was answered busy and closed without a handshake
+     */
+    void shed() {
+        shed.increment();
+    }
+
+    /**
+     * @param failure the reason a key exchange failed
+     */
+    void failure(Failure failure) {
+        failures[failure.ordinal()].increment();
+    }
+
+    /**
+     * @param phase the measured phase
+     * @param started the System.nanoTime() the phase started at
+     * @return the current System.nanoTime(), the start of a following phase
+     */
+    long record(Phase phase, long started) {
+        long now = System.nanoTime();
+        latencies[phase.ordinal()].record(now - started);
+        return now;
+    }
+
+    /**
+     * @return every counter and histogram, one line each
+     */
+    String snapshot() {
+        StringBuilder out = new StringBuilder(String.format("Metrics of %s, accepted: %d, handshakes: %d, resumed: %d, queued: %d, shed: %d",
+                serverId, accepted.sum(), handshakes.sum(), resumed.sum(), queued.sum(), shed.sum()));
+        for (Failure failure : Failure.values()) {
+            out.append(", ").append(failure.attribute).append(": ").append(failures[failure.ordinal()].sum());
+        }
+        for (Phase phase : Phase.values()) {
+            ConcurrentHistogram histogram = latencies[phase.ordinal()];
+            if (histogram.count() == 0)
+                continue;
+            out.append(System.lineSeparator()).append(String.format(Locale.ROOT,
+                    "  %-22s count %9d  mean %7d us  p50 %7d us  p99 %7d us  p99.9 %7d us",
+                    phase.attribute, histogram.count(), histogram.mean(),
+                    histogram.percentile(0.5), histogram.percentile(0.99), histogram.percentile(0.999)));
+        }
+        return out.toString();
+    }
+
+    /**
+     * The loop of the reporter thread
+     */
+    private void report() {
+        while (true) {
+            try {
+                Thread.sleep(interval * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            log.info("{}", snapshot());
+        }
+    }
+
+    /**
+     * Attributes are the counters and, for every phase,
+     * [phase].count and [phase].mean, .p50, .p99, .p999 in microseconds
+     */
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "accepted":
+                return accepted.sum();
+            case "handshakes":
+                return handshakes.sum();
+            case "resumed":
+                return resumed.sum();
+            case "queued":
+                return queued.sum();
+            case "shed":
+                return shed.sum();
+            default:
+                break;
+        }
+        for (Failure failure : Failure.values()) {
+            if (attribute.equals("failures." + failure.attribute))
+                return failures[failure.ordinal()].sum();
+        }
+        int dot = attribute.indexOf('.');
+        if (dot > 0) {
+            String prefix = attribute.substring(0, dot);
+            String statistic = attribute.substring(dot + 1);
+            for (Phase phase : Phase.values()) {
+                if (phase.attribute.equals(prefix))
+                    return statistic(latencies[phase.ordinal()], statistic, attribute);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static long statistic(ConcurrentHistogram histogram, String statistic, String attribute)
+            throws AttributeNotFoundException {
+        switch (statistic) {
+            case "count":
+                return histogram.count();
+            case "mean":
+                return histogram.mean();
+            case "p50":
+                return histogram.percentile(0.5);
+            case "p99":
+                return histogram.percentile(0.99);
+            case "p999":
+                return histogram.percentile(0.999);
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out as the interface requires
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(counter("accepted", "Accepted connections"));
+        attributes.add(counter("handshakes", "Completed key exchanges"));
+        attributes.add(counter("resumed", "Resumed sessions"));
+        attributes.add(counter("queued", "Connections that waited for a handshake slot"));
+        attributes.add(counter("shed", "Connections answered busy"));
+        for (Failure failure : Failure.values()) {
+            attributes.add(counter("failures." + failure.attribute, "Failed key exchanges"));
+        }
+        for (Phase phase : Phase.values()) {
+            for (String statistic : STATISTICS) {
+                attributes.add(counter(phase.attribute + "." + statistic,
+                        statistic.equals("count") ? "Measurements" : "Latency in microseconds"));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Handshake metrics of server " + serverId,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo counter(String name, String description) {
+        return new MBeanAttributeInfo(name, "long", description, true, false, false);
+    }
+}
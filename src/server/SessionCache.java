@@ -0,0 +1,361 @@
+package server;
+
+import crypto.Entropy;
+import protocol.DataChannel;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Established session keys by session ticket, so a reconnecting client
+ * can resume its session without another key exchange
+ *
+ * Tickets are random, their first byte picks one of a fixed number of
+ * stripes, every stripe is an open addressing table behind its own lock.
+ * The records have a fixed size and live off-heap in one direct buffer per
+ * stripe, so a million sessions are a few buffers the collector never
+ * scans instead of millions of small objects:
+ *
+ * used (int) | pad | expiresAt (long) | client id hash (long) | ticket (16) | key (32)
+ *
+ * The key of a record is the resumption secret derived from the session
+ * key and the ticket, never the secret of the key exchange. Slots are
+ * found by linear probing from the hash of the ticket and freed by
+ * shifting the rest of their cluster back, so no tombstones pile up, and
+ * a freed record is overwritten with zeros at once. A full stripe evicts
+ * the oldest of a few records next to the new one, and the journal records
+ * the eviction. Entries older than the
+ * time to live are dropped when they are looked up.
+ */
+final class SessionCache {
+    static final int TICKET_LENGTH = 16;
+    static final int KEY_LENGTH = DataChannel.RESUMPTION_KEY_LENGTH;
+    private static final int STRIPES = 16;
+    private static final int USED = 0;
+    private static final int EXPIRES_AT = 8;
+    private static final int ID_HASH = 16;
+    private static final int TICKET = 24;
+    private static final int KEY = TICKET + TICKET_LENGTH;
+    private static final int RECORD = KEY + KEY_LENGTH;
+    /** Records compared when a full stripe picks the one to evict */
+    private static final int EVICTION_SAMPLE = 8;
+    private static final byte[] EMPTY = new byte[RECORD];
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final int ttlSeconds;
+    private final boolean enabled;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private SessionJournal journal;
+
+    /**
+     * Receives the live sessions of the cache, the arrays are reused
+     * between calls and wiped afterwards
+     */
+    interface Visitor {
+        void visit(byte[] ticket, long idHash, byte[] key, long expiresAt);
+    }
+
+    /**
+     * One lock and one table of records, at most three quarters full
+     */
+    private final class Stripe {
+        private final ByteBuffer table;
+        private final int mask;
+        private final int capacity;
+        private int size;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            int slots = Integer.highestOneBit(capacity + capacity / 3) << 1;
+            this.table = ByteBuffer.allocateDirect(slots * RECORD);
+            this.mask = slots - 1;
+        }
+
+        /**
+         * @return the slot of the ticket, -1 if it is not in the table
+         */
+        int find(long high, long low) {
+            for (int slot = home(low); ; slot = (slot + 1) & mask) {
+                int at = slot * RECORD;
+                if (table.getInt(at + USED) == 0)
+                    return -1;
+                if (table.getLong(at + TICKET) == high && table.getLong(at + TICKET + 8) == low)
+                    return slot;
+            }
+        }
+
+        /**
+         * @return the ticket of the session evicted for the new one if it is journaled, otherwise null
+         */
+        byte[] put(long high, long low, byte[] ticket, long idHash, byte[] key, long expiresAt) {
+            byte[] evicted = null;
+            int slot = find(high, low);
+            if (slot < 0) {
+                if (size == capacity) {
+                    int victim = victim(home(low));
+                    if (journal != null) {
+                        evicted = new byte[TICKET_LENGTH];
+                        table.get(victim * RECORD + TICKET, evicted);
+                    }
+                    remove(victim);
+                    evictions.increment();
+                }
+                slot = home(low);
+                while (table.getInt(slot * RECORD + USED) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                size++;
+            }
+            int at = slot * RECORD;
+            table.putInt(at + USED, 1);
+            table.putLong(at + EXPIRES_AT, expiresAt);
+            table.putLong(at + ID_HASH, idHash);
+            table.put(at + TICKET, ticket);
+            table.put(at + KEY, key);
+            return evicted;
+        }
+
+        /**
+         * @param from the slot to start looking at
+         * @return the slot of the oldest of the first few records from there
+         */
+        private int victim(int from) {
+            int victim = -1;
+            long oldest = 0;
+            int sampled = 0;
+            for (int i = 0, slot = from; i <= mask && sampled < EVICTION_SAMPLE; i++, slot = (slot + 1) & mask) {
+                int at = slot * RECORD;
+                if (table.getInt(at + USED) == 0)
+                    continue;
+                long expiresAt = table.getLong(at + EXPIRES_AT);
+                if (victim < 0 || expiresAt - oldest < 0) {
+                    victim = slot;
+                    oldest = expiresAt;
+                }
+                sampled++;
+            }
+            return victim;
+        }
+
+        /**
+         * Frees the slot, moves the later records of its cluster that may
+         * live in it back and wipes the slot left empty
+         */
+        void remove(int slot) {
+            int hole = slot;
+            for (int next = (slot + 1) & mask; table.getInt(next * RECORD + USED) != 0; next = (next + 1) & mask) {
+                int home = home(table.getLong(next * RECORD + TICKET + 8));
+                // the record may move if the hole lies between its home and its slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table.put(hole * RECORD, table, next * RECORD, RECORD);
+                    hole = next;
+                }
+            }
+            table.put(hole * RECORD, EMPTY);
+            size--;
+        }
+
+        private int home(long low) {
+            // the ticket is random, its bytes are already a good hash
+            return (int) (low ^ (low >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * @param maxSessions the maximum number of cached sessions, 0 disables resumption
+     * @param ttlSeconds seconds a ticket stays valid
+     */
+    SessionCache(int maxSessions, int ttlSeconds) {
+        this.enabled = maxSessions > 0 && ttlSeconds > 0;
+        this.ttlSeconds = Math.max(0, ttlSeconds);
+        this.ttlNanos = this.ttlSeconds * 1_000_000_000L;
+        int perStripe = enabled ? (maxSessions + STRIPES - 1) / STRIPES : 1;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Creates the cache configured by the system properties
+     * dhke.sessionCache.size (default 100000, 0 disables resumption) and
+     * dhke.sessionCache.ttl in seconds (default 3600), rebuilt from and
+     * recorded in the journal of dhke.journal.dir if it is set
+     * @return the cache
+     * @throws IllegalArgumentException if the journal cannot be opened
+     */
+    static SessionCache fromProperties() {
+        SessionCache cache = new SessionCache(Integer.getInteger("dhke.sessionCache.size", 100000),
+                Integer.getInteger("dhke.sessionCache.ttl", 3600));
+        if (cache.enabled)
+            cache.journal = SessionJournal.fromProperties(cache);
+        return cache;
+    }
+
+    /**
+     * @return seconds a new ticket stays valid
+     */
+    int lifetime() {
+        return ttlSeconds;
+    }
+
+    /**
+     * @return a fresh random ticket, empty if resumption is disabled
+     */
+    byte[] newTicket() {
+        byte[] ticket = new byte[enabled ? TICKET_LENGTH : 0];
+        Entropy.nextBytes(ticket);
+        return ticket;
+    }
+
+    /**
+     * Remembers an established session
+     * @param ticket the ticket sent to the client
+     * @param clientId the id of the client
+     * @param sessionKey the established key
+     */
+    void put(byte[] ticket, String clientId, BigInteger sessionKey) {
+        if (!enabled || ticket.length != TICKET_LENGTH)
+            return;
+        byte[] key = DataChannel.resumptionSecret(sessionKey, ticket);
+        ByteBuffer id = ByteBuffer.wrap(ticket);
+        Stripe stripe = stripe(ticket);
+        long idHash = idHash(clientId);
+        long expiresAt = System.nanoTime() + ttlNanos;
+        byte[] evicted;
+        synchronized (stripe) {
+            evicted = stripe.put(id.getLong(0), id.getLong(8), ticket, idHash, key, expiresAt);
+        }
+        if (journal != null) {
+            journal.append(ticket, idHash, key, expiresAt);
+            // expired sessions need no record, the replay skips them by their time
+            if (evicted != null)
+                journal.remove(evicted);
+        }
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Puts back a session read from the journal, a lifetime beyond the
+     * time to live of this cache is cut to it
+     * @param ticket the ticket of the session
+     * @param idHash the hash of the client id
+     * @param key the resumption secret
+     * @param expiresAt the System.nanoTime() the session expires at
+     */
+    void restore(byte[] ticket, long idHash, byte[] key, long expiresAt) {
+        ByteBuffer id = ByteBuffer.wrap(ticket);
+        Stripe stripe = stripe(ticket);
+        long latest = System.nanoTime() + ttlNanos;
+        if (expiresAt - latest > 0)
+            expiresAt = latest;
+        synchronized (stripe) {
+            stripe.put(id.getLong(0), id.getLong(8), ticket, idHash, key, expiresAt);
+        }
+    }
+
+    /**
+     * Visits every session that did not expire, one stripe locked at a time
+     * @param visitor receives the sessions
+     */
+    void forEach(Visitor visitor) {
+        byte[] ticket = new byte[TICKET_LENGTH];
+        byte[] key = new byte[KEY_LENGTH];
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                long now = System.nanoTime();
+                for (int at = 0; at < stripe.table.capacity(); at += RECORD) {
+                    if (stripe.table.getInt(at + USED) == 0 || stripe.table.getLong(at + EXPIRES_AT) - now < 0)
+                        continue;
+                    stripe.table.get(at + TICKET, ticket);
+                    stripe.table.get(at + KEY, key);
+                    visitor.visit(ticket, stripe.table.getLong(at + ID_HASH), key, stripe.table.getLong(at + EXPIRES_AT));
+                }
+            }
+        }
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Closes the journal, the sessions stay resumable until the process ends
+     */
+    void close() {
+        if (journal != null)
+            journal.close();
+    }
+
+    /**
+     * Looks up the session of a ticket
+     * @param ticket the ticket presented by the client
+     * @param clientId the id of the client, must match the one of the session
+     * @return the resumption secret of the session as the key to continue with,
+     * null if the ticket is unknown or expired
+     */
+    BigInteger resume(byte[] ticket, String clientId) {
+        if (!enabled || ticket.length != TICKET_LENGTH) {
+            misses.increment();
+            return null;
+        }
+        ByteBuffer id = ByteBuffer.wrap(ticket);
+        Stripe stripe = stripe(ticket);
+        byte[] key = new byte[DataChannel.RESUMPTION_KEY_LENGTH];
+        boolean found = false;
+        synchronized (stripe) {
+            int slot = stripe.find(id.getLong(0), id.getLong(8));
+            if (slot >= 0) {
+                int at = slot * RECORD;
+                if (stripe.table.getLong(at + EXPIRES_AT) - System.nanoTime() < 0) {
+                    stripe.remove(slot);
+                } else if (stripe.table.getLong(at + ID_HASH) == idHash(clientId)) {
+                    stripe.table.get(at + KEY, key);
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        BigInteger sessionKey = new BigInteger(1, key);
+        Arrays.fill(key, (byte) 0);
+        return sessionKey;
+    }
+
+    /**
+     * @return a one line summary of the cache state
+     */
+    String stats() {
+        int size = 0;
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+            bytes += stripe.table.capacity();
+        }
+        String stats = String.format("Session cache size: %d, resumed: %d, rejected: %d, evicted: %d, off-heap: %d KiB",
+                size, hits.sum(), misses.sum(), evictions.sum(), bytes / 1024);
+        return journal == null ? stats : stats + System.lineSeparator() + journal.stats();
+    }
+
+    private Stripe stripe(byte[] ticket) {
+        return stripes[ticket[0] & (STRIPES - 1)];
+    }
+
+    /**
+     * @param clientId the id of a client
+     * @return the 64 bit FNV-1a hash of the id, the ticket alone already
+     * identifies the session, the hash only binds it to the id
+     */
+    private static long idHash(String clientId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < clientId.length(); i++) {
+            hash = (hash ^ clientId.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
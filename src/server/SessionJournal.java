@@ -0,0 +1,447 @@
+package server;
+
+import log.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * An append only journal of the resumable sessions, so a restarted server
+ * resumes the sessions of its clients instead of redoing every key exchange
+ *
+ * The journal is a directory of segments of a fixed size, each mapped into
+ * memory, an append is a copy into the mapping and survives the crash of
+ * the process; the segment is forced to disk when it is full and when the
+ * journal is closed. A segment starts with a 16 byte header, the records
+ * follow and a record with type 0 ends it:
+ *
+ * crc32c (int) | type (byte) | pad | expiresAt (long, epoch ms) | client id hash (long) | ticket (16) | key (32)
+ *
+ * The checksum covers the record after it, a torn or corrupt record is
+ * skipped by the replay. A session the cache evicts gets a remove record,
+ * its ticket with the rest zero, and the replay restores only the sessions
+ * that have no remove record and did not expire, their lifetime capped at
+ * the time to live of the restarted cache. Records are never removed, once
+ * more than maxSegments segments exist the live sessions of the cache are
+ * written to fresh segments and the older ones deleted. The order of the
+ * records does not matter as tickets are unique and never put again once
+ * removed, so appends go on while the cache is copied.
+ * The records hold the keys of the sessions, on POSIX file systems the
+ * directory and segments are created for the owner only and the replay
+ * restricts segments others could read before it trusts them.
+ */
+final class SessionJournal {
+    private static final Log log = Log.get(SessionJournal.class);
+    private static final int MAGIC = 0x44484b4a;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int TYPE = 4;
+    private static final int EXPIRES_AT = 8;
+    private static final int ID_HASH = 16;
+    private static final int TICKET = 24;
+    private static final int KEY = TICKET + SessionCache.TICKET_LENGTH;
+    static final int RECORD = KEY + SessionCache.KEY_LENGTH;
+    private static final String PREFIX = "sessions-";
+    private static final String SUFFIX = ".journal";
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Set<PosixFilePermission> SEGMENT_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final SessionCache cache;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private Segment active;
+    private long appended;
+    private long compactions;
+    private int replayed;
+    private long replayMillis;
+
+    /**
+     * One mapped file of records
+     */
+    private final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private final CRC32C crc = new CRC32C();
+        private int position = HEADER;
+
+        /**
+         * Creates the next segment
+         */
+        Segment() throws IOException {
+            long sequence = nextSequence.getAndIncrement();
+            this.path = directory.resolve(String.format("%s%016x%s", PREFIX, sequence, SUFFIX));
+            this.channel = FileChannel.open(path, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE), ownerOnly(SEGMENT_PERMISSIONS));
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+        }
+
+        /**
+         * @param type PUT or REMOVE, the other fields of a remove are zero
+         * @return if the record fit into the segment
+         */
+        boolean append(byte type, byte[] ticket, long idHash, byte[] key, long expiresAt) {
+            if (position + RECORD > segmentSize)
+                return false;
+            int at = position;
+            map.put(at + TYPE, type);
+            map.putLong(at + EXPIRES_AT, expiresAt);
+            map.putLong(at + ID_HASH, idHash);
+            map.put(at + TICKET, ticket);
+            if (key != null)
+                map.put(at + KEY, key);
+            map.putInt(at, checksum(crc, map, at));
+            position += RECORD;
+            return true;
+        }
+
+        /**
+         * Forces the records to disk and releases the file
+         */
+        void close() {
+            try {
+                map.force();
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close journal segment {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param directory the directory of the segments
+     * @param segmentSize bytes of a segment
+     * @param maxSegments segments kept before the journal is compacted
+     * @param cache the cache the journal records
+     */
+    SessionJournal(Path directory, int segmentSize, int maxSegments, SessionCache cache) {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER + RECORD, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.cache = cache;
+    }
+
+    /**
+     * Opens the journal configured by the system properties and replays it
+     * into the cache, dhke.journal.dir names the directory (no journal if
+     * unset), dhke.journal.segmentSize the bytes of a segment (default 64 MiB)
+     * and dhke.journal.maxSegments the segments kept before compaction (default 4)
+     * @param cache the empty cache to rebuild
+     * @return the journal, null if none is configured
+     * @throws IllegalArgumentException if the journal cannot be opened
+     */
+    static SessionJournal fromProperties(SessionCache cache) {
+        String directory = System.getProperty("dhke.journal.dir");
+        if (directory == null || directory.isEmpty())
+            return null;
+        SessionJournal journal = new SessionJournal(Path.of(directory),
+                Integer.getInteger("dhke.journal.segmentSize", 64 << 20),
+                Integer.getInteger("dhke.journal.maxSegments", 4), cache);
+        try {
+            journal.open();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to open the session journal: " + e.getMessage());
+        }
+        return journal;
+    }
+
+    /**
+     * Replays the existing segments and starts a fresh one
+     * @throws IOException if the directory cannot be read or written
+     */
+    void open() throws IOException {
+        List<Path> replayedPaths = replay();
+        active = new Segment();
+        if (!replayedPaths.isEmpty()) {
+            // the replayed segments are only read again by the next restart, compact them into the cache copy
+            compact(replayedPaths);
+        }
+    }
+
+    /**
+     * @param permissions the permissions of a new file or directory
+     * @return the attribute creating it with them, none where POSIX is not supported
+     */
+    private static FileAttribute<?>[] ownerOnly(Set<PosixFilePermission> permissions) {
+        return POSIX ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(permissions)} : new FileAttribute<?>[0];
+    }
+
+    /**
+     * Takes away the permissions of others from an existing segment,
+     * written by an older version or opened up since
+     * @param path the segment
+     * @return if the segment is readable by its owner only and may be replayed
+     */
+    private static boolean restrict(Path path) {
+        if (!POSIX)
+            return true;
+        try {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+            if (SEGMENT_PERMISSIONS.containsAll(permissions))
+                return true;
+            Files.setPosixFilePermissions(path, SEGMENT_PERMISSIONS);
+            log.warn("Journal segment {} was {}, restricted to its owner", path, PosixFilePermissions.toString(permissions));
+            return true;
+        } catch (IOException e) {
+            log.warn("Skipped journal segment {}: unable to restrict it to its owner: {}", path, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Puts the live sessions of the existing segments into the cache,
+     * the segments are only read
+     * @return the segments replayed
+     * @throws IOException if the directory cannot be read
+     */
+    List<Path> replay() throws IOException {
+        Files.createDirectories(directory, ownerOnly(PosixFilePermissions.fromString("rwx------")));
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            found.forEach(paths::add);
+        }
+        paths.sort(null);
+        long started = System.nanoTime();
+        List<Path> replayedPaths = new ArrayList<>();
+        List<MappedByteBuffer> maps = new ArrayList<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence;
+            try {
+                sequence = Long.parseUnsignedLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSequence.set(Math.max(nextSequence.get(), sequence + 1));
+            if (!restrict(path))
+                continue;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (map.limit() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                    log.warn("Skipped journal segment {}: not a journal", path);
+                    continue;
+                }
+                maps.add(map);
+            }
+            replayedPaths.add(path);
+        }
+        CRC32C crc = new CRC32C();
+        // a removed ticket may have been put in any segment, collect every remove first
+        Set<ByteBuffer> removed = new HashSet<>();
+        int corrupt = 0;
+        for (MappedByteBuffer map : maps) {
+            for (int at = HEADER; at + RECORD <= map.limit() && map.get(at + TYPE) != 0; at += RECORD) {
+                if (map.get(at + TYPE) != REMOVE)
+                    continue;
+                if (map.getInt(at) != checksum(crc, map, at)) {
+                    corrupt++;
+                    continue;
+                }
+                byte[] ticket = new byte[SessionCache.TICKET_LENGTH];
+                map.get(at + TICKET, ticket);
+                removed.add(ByteBuffer.wrap(ticket));
+            }
+        }
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        byte[] ticket = new byte[SessionCache.TICKET_LENGTH];
+        byte[] key = new byte[SessionCache.KEY_LENGTH];
+        ByteBuffer lookup = ByteBuffer.wrap(ticket);
+        for (MappedByteBuffer map : maps) {
+            for (int at = HEADER; at + RECORD <= map.limit() && map.get(at + TYPE) != 0; at += RECORD) {
+                if (map.get(at + TYPE) != PUT)
+                    continue;
+                if (map.getInt(at) != checksum(crc, map, at)) {
+                    corrupt++;
+                    continue;
+                }
+                long remaining = map.getLong(at + EXPIRES_AT) - nowMillis;
+                if (remaining <= 0)
+                    continue;
+                map.get(at + TICKET, ticket);
+                if (!removed.isEmpty() && removed.contains(lookup))
+                    continue;
+                map.get(at + KEY, key);
+                cache.restore(ticket, map.getLong(at + ID_HASH), key, nowNanos + remaining * 1_000_000L);
+                replayed++;
+            }
+        }
+        Arrays.fill(key, (byte) 0);
+        if (corrupt > 0)
+            log.warn("Skipped {} corrupt journal records", corrupt);
+        replayMillis = (System.nanoTime() - started) / 1_000_000;
+        /* Documentation */
+        log.info("Replayed {} sessions from {} journal segments in {} ms, {} removed", replayed, replayedPaths.size(),
+                replayMillis, removed.size());
+        return replayedPaths;
+    }
+
+    /**
+     * Records an established session
+     * @param ticket the ticket of the session
+     * @param idHash the hash of the client id
+     * @param key the resumption secret
+     * @param expiresAt the System.nanoTime() the session expires at
+     */
+    void append(byte[] ticket, long idHash, byte[] key, long expiresAt) {
+        append(PUT, ticket, idHash, key, System.currentTimeMillis() + (expiresAt - System.nanoTime()) / 1_000_000);
+    }
+
+    /**
+     * Records a session the cache dropped before it expired,
+     * so a restart does not bring it back
+     * @param ticket the ticket of the session
+     */
+    void remove(byte[] ticket) {
+        append(REMOVE, ticket, 0, null, 0);
+    }
+
+    private void append(byte type, byte[] ticket, long idHash, byte[] key, long expiresAtMillis) {
+        List<Path> compactable = null;
+        synchronized (this) {
+            if (active == null)
+                return;
+            appended++;
+            if (active.append(type, ticket, idHash, key, expiresAtMillis))
+                return;
+            try {
+                Segment next = new Segment();
+                active.close();
+                segments.add(active.path);
+                active = next;
+            } catch (IOException e) {
+                log.warn("Unable to roll the session journal over: {}", e.getMessage());
+                return;
+            }
+            active.append(type, ticket, idHash, key, expiresAtMillis);
+            if (segments.size() >= maxSegments && compacting.compareAndSet(false, true)) {
+                compactable = new ArrayList<>(segments);
+                segments.clear();
+            }
+        }
+        if (compactable != null)
+            startCompaction(compactable);
+    }
+
+    private void compact(List<Path> replayedPaths) {
+        if (compacting.compareAndSet(false, true))
+            startCompaction(replayedPaths);
+    }
+
+    /**
+     * Copies the live sessions of the cache into fresh segments and deletes
+     * the given ones, on a thread of its own
+     * @param obsolete the full segments, every live record of them is in the cache
+     */
+    private void startCompaction(List<Path> obsolete) {
+        Thread compaction = new Thread(() -> {
+            try {
+                List<Path> written = copyCache();
+                // oldest first, a put is never left behind without the remove that follows it
+                for (Path path : obsolete) {
+                    Files.deleteIfExists(path);
+                }
+                synchronized (this) {
+                    // the copies are older than the active segment, compacted with the next full ones
+                    for (Path path : written) {
+                        segments.addFirst(path);
+                    }
+                    compactions++;
+                }
+            } catch (IOException e) {
+                log.warn("Session journal compaction failed: {}", e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+        }, "session-journal-compaction");
+        compaction.setDaemon(true);
+        compaction.start();
+    }
+
+    /**
+     * @return the segments holding a copy of every live session of the cache
+     */
+    private List<Path> copyCache() throws IOException {
+        List<Path> written = new ArrayList<>();
+        Segment[] current = {new Segment()};
+        written.add(current[0].path);
+        IOException[] failure = {null};
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        cache.forEach((ticket, idHash, key, expiresAt) -> {
+            if (failure[0] != null)
+                return;
+            long expiresAtMillis = nowMillis + (expiresAt - nowNanos) / 1_000_000;
+            if (!current[0].append(PUT, ticket, idHash, key, expiresAtMillis)) {
+                current[0].close();
+                try {
+                    current[0] = new Segment();
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return;
+                }
+                written.add(current[0].path);
+                current[0].append(PUT, ticket, idHash, key, expiresAtMillis);
+            }
+        });
+        current[0].close();
+        if (failure[0] != null)
+            throw failure[0];
+        return written;
+    }
+
+    /**
+     * Forces the active segment to disk, later appends are dropped
+     */
+    synchronized void close() {
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+    }
+
+    /**
+     * @return a one line summary of the journal
+     */
+    synchronized String stats() {
+        return String.format("Session journal segments: %d, appended: %d, replayed: %d in %d ms, compactions: %d",
+                segments.size() + 1, appended, replayed, replayMillis, compactions);
+    }
+
+    /**
+     * @return the CRC32C of the record at the offset, its checksum field excluded
+     */
+    private static int checksum(CRC32C crc, ByteBuffer map, int at) {
+        crc.reset();
+        crc.update(map.slice(at + TYPE, RECORD - TYPE));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import protocol.Frame;
+import protocol.Wire;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The logical sessions a client multiplexes over one connection with
+ * stream frames, each with its own key exchange and key
+ *
+ * A stream carries key exchanges, group negotiation and resumption, the
+ * requests a single session needs; pipelined requests and data channels
+ * stay on connections of their own. Ids are below -Ddhke.mux.maxStreams
+ * (default 256), a client reuses the id of a finished stream and the next
+ * exchange on it replaces the key. The keys of a connection are kept in one
+ * array that grows with the highest id used, only the connection's thread
+ * touches it.
+ */
+final class Streams {
+    static final int MAX_STREAMS = Math.max(1, Integer.getInteger("dhke.mux.maxStreams", 256));
+    private BigInteger[] keys;
+    private int established;
+
+    /**
+     * @param frame a frame that came in a stream frame
+     * @return if the stream id is valid and the frame may come in a stream
+     */
+    static boolean carries(Frame frame) {
+        byte type = frame.type();
+        return frame.stream() < MAX_STREAMS && (type == Wire.KEY_REQUEST || type == Wire.TICKET_REQUEST
+                || type == Wire.GROUP_REQUEST || type == Wire.RESUME_REQUEST);
+    }
+
+    /**
+     * Remembers the key established on a stream
+     * @param stream the id of the stream
+     * @param key the session key of the stream
+     */
+    void put(int stream, BigInteger key) {
+        if (keys == null)
+            keys = new BigInteger[Math.min(MAX_STREAMS, 16)];
+        if (stream >= keys.length)
+            keys = Arrays.copyOf(keys, Math.min(MAX_STREAMS, Math.max(stream + 1, keys.length * 2)));
+        if (keys[stream] == null)
+            established++;
+        keys[stream] = key;
+    }
+
+    /**
+     * @return number of streams that have a key
+     */
+    int established() {
+        return established;
+    }
+}
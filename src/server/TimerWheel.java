@@ -0,0 +1,236 @@
+package server;
+
+import log.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel (Varghese and Lauck) running tasks at deadlines
+ *
+ * A single daemon thread advances the wheel once per tick and runs the tasks
+ * of the bucket whose time has come, a timeout waits in the bucket of its tick
+ * for as many turns of the wheel as its rounds count. Scheduling, moving and
+ * cancelling only queue the timeout for the wheel thread, which alone touches
+ * the buckets, so callers never block on each other. Postponing a deadline
+ * costs a volatile write, the wheel moves the timeout when its old deadline
+ * comes up; only an earlier deadline is queued to move at once.
+ */
+final class TimerWheel {
+    private static final Log log = Log.get(TimerWheel.class);
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Queue<Timeout> changes = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime = System.nanoTime();
+    private final LongAdder expired = new LongAdder();
+    private volatile boolean running = true;
+    private volatile int size;
+    private long tick;
+
+    /**
+     * A task waiting for its deadline
+     */
+    final class Timeout {
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        // owned by the wheel thread
+        private Timeout previous;
+        private Timeout next;
+        private int bucket = -1;
+        private long rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Moves the deadline to the given time from now
+         * @param delayNanos the new delay
+         */
+        void reset(long delayNanos) {
+            long previousDeadline = deadline;
+            long nextDeadline = System.nanoTime() + delayNanos;
+            deadline = nextDeadline;
+            if (nextDeadline - previousDeadline < 0)
+                changes.add(this);
+        }
+
+        /**
+         * Cancels the task if it did not run yet
+         */
+        void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                changes.add(this);
+            }
+        }
+    }
+
+    /**
+     * @param name the name of the wheel thread
+     * @param tickMillis the resolution of the deadlines
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the wheel thread
+     */
+    void start() {
+        worker.start();
+    }
+
+    /**
+     * Stops the wheel thread, pending tasks never run
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * Runs the task once the delay passed, on the wheel thread,
+     * so it must be short
+     * @param task the task to run
+     * @param delayNanos the delay from now
+     * @return the handle to move or cancel the deadline
+     */
+    Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + delayNanos);
+        changes.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts in the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of tasks run so far
+     */
+    long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * The loop of the wheel thread, one bucket per tick
+     */
+    private void run() {
+        while (running) {
+            long wakeUp = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) - wakeUp < 0 && running) {
+                LockSupport.parkNanos(this, wakeUp - now);
+            }
+            applyChanges();
+            expireBucket((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    /**
+     * Places the scheduled and moved timeouts and drops the cancelled ones
+     */
+    private void applyChanges() {
+        Timeout timeout;
+        while ((timeout = changes.poll()) != null) {
+            unlink(timeout);
+            if (!timeout.cancelled)
+                place(timeout);
+        }
+    }
+
+    /**
+     * Runs the due tasks of the bucket and moves the postponed ones
+     * @param index the bucket of the current tick
+     */
+    private void expireBucket(int index) {
+        // detach the list first, a timeout placed again may land in this bucket
+        Timeout timeout = buckets[index];
+        buckets[index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = -1;
+            size--;
+            if (timeout.cancelled) {
+                // dropped
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                insert(timeout, index);
+            } else if (tickOf(timeout.deadline) > tick) {
+                place(timeout);
+            } else {
+                // a task runs once, later resets find it cancelled
+                timeout.cancelled = true;
+                expired.increment();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Timeout task failed: {}", e.toString());
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts the timeout into the bucket of its deadline
+     */
+    private void place(Timeout timeout) {
+        long target = Math.max(tick, tickOf(timeout.deadline));
+        timeout.rounds = (target - tick) / buckets.length;
+        insert(timeout, (int) (target & mask));
+    }
+
+    /**
+     * @param deadline a System.nanoTime() value
+     * @return the tick whose bucket expires the deadline
+     */
+    private long tickOf(long deadline) {
+        long elapsed = deadline - startTime;
+        return elapsed <= 0 ? 0 : elapsed / tickNanos;
+    }
+
+    private void insert(Timeout timeout, int index) {
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null)
+            head.previous = timeout;
+        buckets[index] = timeout;
+        timeout.bucket = index;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0)
+            return;
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
@@ -0,0 +1,185 @@
+package server;
+
+import log.Log;
+import protocol.Transcript;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the bytes clients send during their handshakes with the time
+ * they arrive, in the format of protocol.Transcript, for client.Replay
+ *
+ * -Ddhke.record=<file> turns the recording on, -Ddhke.record.maxBytes
+ * (default 1 GiB) stops it once the file reached the size. Events are
+ * appended to a buffered stream under one lock in arrival order, and
+ * flushed when the server stops. The records of a data channel are not
+ * recorded, nor is anything after a channel was opened. A transcript
+ * holds client ids and session tickets, keep it like a credential.
+ */
+final class TranscriptRecorder {
+    private static final Log log = Log.get(TranscriptRecorder.class);
+    /** Records nothing */
+    static final TranscriptRecorder NONE = new TranscriptRecorder(null, 0);
+    private static final Recording NOT_RECORDED = NONE.new Recording(-1);
+    private final DataOutputStream out;
+    private final long maxBytes;
+    private final long start = System.nanoTime();
+    private final AtomicLong nextId = new AtomicLong();
+    private long lastMicros;
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * The events of one connection
+     */
+    final class Recording {
+        private final long id;
+
+        private Recording(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Records the bytes just read into a buffer
+         * @param buffer the buffer read into
+         * @param offset the index of the first byte read
+         * @param length number of bytes read
+         */
+        void data(ByteBuffer buffer, int offset, int length) {
+            if (id >= 0 && length > 0)
+                write(Transcript.DATA, id, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+
+        /**
+         * @param in the stream of the connection
+         * @return the stream recording every byte read from it
+         */
+        InputStream wrap(InputStream in) {
+            if (id < 0)
+                return in;
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        write(Transcript.DATA, id, new byte[] {(byte) b}, 0, 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int n = super.read(bytes, offset, length);
+                    if (n > 0)
+                        write(Transcript.DATA, id, bytes, offset, n);
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Records the end of the connection
+         */
+        void close() {
+            if (id >= 0)
+                write(Transcript.CLOSE, id, null, 0, 0);
+        }
+    }
+
+    /**
+     * @param out the stream of the file with its header written, null to record nothing
+     * @param maxBytes the size the file stops growing at
+     */
+    private TranscriptRecorder(DataOutputStream out, long maxBytes) {
+        this.out = out;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the recorder configured by the system properties
+     * @return the recorder, NONE unless dhke.record names a file
+     * @throws IllegalArgumentException if the file cannot be created
+     */
+    static TranscriptRecorder fromProperties() {
+        String file = System.getProperty("dhke.record");
+        if (file == null || file.isEmpty())
+            return NONE;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(file)), 1 << 16));
+            out.writeInt(Transcript.MAGIC);
+            out.writeInt(Transcript.VERSION);
+            out.writeLong(System.currentTimeMillis());
+            TranscriptRecorder recorder = new TranscriptRecorder(out, Long.getLong("dhke.record.maxBytes", 1L << 30));
+            // the accept loops never return, the buffered events are flushed on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "transcript-flush"));
+            return recorder;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to create the transcript: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts recording a new connection
+     * @return the recording of the connection
+     */
+    Recording open() {
+        if (out == null)
+            return NOT_RECORDED;
+        Recording recording = new Recording(nextId.getAndIncrement());
+        write(Transcript.OPEN, recording.id, null, 0, 0);
+        return recording;
+    }
+
+    private synchronized void write(byte type, long id, byte[] bytes, int offset, int length) {
+        if (closed)
+            return;
+        if (out.size() >= maxBytes) {
+            dropped++;
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        try {
+            out.writeByte(type);
+            Transcript.putVarLong(out, id);
+            Transcript.putVarLong(out, micros - lastMicros);
+            if (type == Transcript.DATA) {
+                Transcript.putVarLong(out, length);
+                out.write(bytes, offset, length);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to record the transcript: {}", e.getMessage());
+            closed = true;
+        }
+        lastMicros = micros;
+    }
+
+    /**
+     * Flushes and closes the file, later events are dropped
+     */
+    synchronized void close() {
+        if (out == null || closed)
+            return;
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the transcript: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return a one line summary of the recording, null if nothing is recorded
+     */
+    synchronized String stats() {
+        if (out == null)
+            return null;
+        return String.format("Transcript connections: %d, bytes: %d, dropped events: %d", nextId.get(), out.size(), dropped);
+    }
+}
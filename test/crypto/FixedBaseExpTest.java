@@ -0,0 +1,105 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FixedBaseExpTest {
+    private static final Random random = new Random(2048);
+    private static final BigInteger P = BigInteger.probablePrime(1024, random);
+    private static final BigInteger G = new BigInteger(1000, random);
+
+    @Test
+    void exponentZeroIsOne() {
+        assertEquals(BigInteger.ONE, FixedBaseExp.of(G, P).pow(BigInteger.ZERO));
+        assertEquals(BigInteger.ONE, FixedBaseExp.of(G, P, 160).pow(BigInteger.ZERO));
+    }
+
+    @Test
+    void exponentOneIsTheBase() {
+        assertEquals(G, FixedBaseExp.of(G, P).pow(BigInteger.ONE));
+        assertEquals(G, FixedBaseExp.of(G, P, 160).pow(BigInteger.ONE));
+    }
+
+    @Test
+    void baseZero() {
+        FixedBaseExp zero = FixedBaseExp.of(BigInteger.ZERO, P);
+        assertEquals(BigInteger.ONE, zero.pow(BigInteger.ZERO));
+        assertEquals(BigInteger.ZERO, zero.pow(BigInteger.ONE));
+        assertEquals(BigInteger.ZERO, zero.pow(new BigInteger(1024, random)));
+    }
+
+    @Test
+    void baseAtLeastTheModulus() {
+        for (BigInteger g : new BigInteger[]{P, P.add(BigInteger.TWO), P.shiftLeft(5).add(G)}) {
+            FixedBaseExp table = FixedBaseExp.of(g, P);
+            BigInteger x = new BigInteger(1024, random);
+            assertEquals(g.modPow(x, P), table.pow(x), g.toString(16));
+            assertEquals(g.mod(P), table.pow(BigInteger.ONE));
+        }
+    }
+
+    @Test
+    void randomOperands() {
+        FixedBaseExp table = FixedBaseExp.of(G, P);
+        for (int i = 0; i < 200; i++) {
+            BigInteger x = new BigInteger(1 + random.nextInt(1024), random);
+            assertEquals(G.modPow(x, P), table.pow(x), "round " + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            BigInteger g = new BigInteger(1024, random);
+            BigInteger x = new BigInteger(1024, random);
+            assertEquals(g.modPow(x, P), FixedBaseExp.of(g, P).pow(x), "base " + i);
+        }
+    }
+
+    @Test
+    void shortTable() {
+        FixedBaseExp table = FixedBaseExp.of(G, P, 160);
+        for (int i = 0; i < 50; i++) {
+            BigInteger x = new BigInteger(160, random);
+            assertEquals(G.modPow(x, P), table.pow(x), "round " + i);
+        }
+        // longer exponents fall back to BigInteger.modPow
+        BigInteger x = new BigInteger(1024, random);
+        assertEquals(G.modPow(x, P), table.pow(x));
+    }
+
+    @Test
+    void negativeExponent() {
+        BigInteger x = new BigInteger(160, random);
+        assertEquals(G.modPow(x.negate(), P), FixedBaseExp.of(G, P).pow(x.negate()));
+    }
+
+    @Test
+    void limbsMatchBigIntegers() {
+        FixedBaseExp table = FixedBaseExp.of(G, P);
+        int n = Montgomery.of(P).limbs();
+        for (int i = 0; i < 20; i++) {
+            BigInteger x = new BigInteger(1024, random);
+            long[] result = new long[n];
+            table.pow(Montgomery.toLimbs(x, n), result);
+            assertArrayEquals(Montgomery.toLimbs(G.modPow(x, P), n), result);
+        }
+    }
+
+    @Test
+    void limbsLongerThanTheTable() {
+        int n = Montgomery.of(P).limbs();
+        long[] result = new long[n];
+        FixedBaseExp shortTable = FixedBaseExp.of(G, P, 160);
+        for (int bits : new int[]{161, 168, 192, 1024}) {
+            BigInteger x = new BigInteger(bits - 1, random).setBit(bits - 1);
+            shortTable.pow(Montgomery.toLimbs(x, n), result);
+            assertArrayEquals(Montgomery.toLimbs(G.modPow(x, P), n), result, bits + " bits");
+        }
+        // more limbs than p
+        BigInteger x = new BigInteger(2000, random).setBit(1999);
+        FixedBaseExp.of(G, P).pow(Montgomery.toLimbs(x, 2 * n), result);
+        assertArrayEquals(Montgomery.toLimbs(G.modPow(x, P), n), result);
+    }
+}
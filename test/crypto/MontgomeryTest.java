@@ -0,0 +1,118 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MontgomeryTest {
+    private static final Random random = new Random(1024);
+    private static final BigInteger P = BigInteger.probablePrime(1024, random);
+
+    @Test
+    void exponentZeroIsOne() {
+        Montgomery engine = Montgomery.of(P);
+        assertEquals(BigInteger.ONE, engine.modPow(new BigInteger(1000, random), BigInteger.ZERO));
+        assertEquals(BigInteger.ONE, engine.modPow(BigInteger.ZERO, BigInteger.ZERO));
+    }
+
+    @Test
+    void exponentOneIsTheBase() {
+        Montgomery engine = Montgomery.of(P);
+        BigInteger base = new BigInteger(1000, random);
+        assertEquals(base, engine.modPow(base, BigInteger.ONE));
+        assertEquals(BigInteger.ONE, engine.modPow(BigInteger.ONE, BigInteger.ONE));
+    }
+
+    @Test
+    void baseZero() {
+        Montgomery engine = Montgomery.of(P);
+        BigInteger exponent = new BigInteger(1024, random);
+        assertEquals(BigInteger.ZERO.modPow(exponent, P), engine.modPow(BigInteger.ZERO, exponent));
+        assertEquals(BigInteger.ZERO, engine.modPow(BigInteger.ZERO, BigInteger.ONE));
+    }
+
+    @Test
+    void baseAtLeastTheModulus() {
+        Montgomery engine = Montgomery.of(P);
+        BigInteger exponent = new BigInteger(160, random);
+        for (BigInteger base : new BigInteger[]{P, P.add(BigInteger.ONE), P.shiftLeft(3).add(BigInteger.valueOf(7)),
+                P.multiply(P).subtract(BigInteger.ONE)}) {
+            assertEquals(base.modPow(exponent, P), engine.modPow(base, exponent), base.toString(16));
+        }
+    }
+
+    @Test
+    void negativeOperands() {
+        Montgomery engine = Montgomery.of(P);
+        BigInteger base = new BigInteger(1000, random);
+        BigInteger exponent = new BigInteger(160, random);
+        assertEquals(base.negate().modPow(exponent, P), engine.modPow(base.negate(), exponent));
+        assertEquals(base.modPow(exponent.negate(), P), engine.modPow(base, exponent.negate()));
+    }
+
+    @Test
+    void randomOperands() {
+        Montgomery engine = Montgomery.of(P);
+        for (int i = 0; i < 200; i++) {
+            BigInteger base = new BigInteger(1024, random);
+            BigInteger exponent = new BigInteger(1 + random.nextInt(1024), random);
+            assertEquals(base.modPow(exponent, P), engine.modPow(base, exponent), "round " + i);
+        }
+    }
+
+    @Test
+    void exponentLongerThanTheModulus() {
+        Montgomery engine = Montgomery.of(P);
+        BigInteger base = new BigInteger(1024, random);
+        BigInteger exponent = new BigInteger(3000, random);
+        assertEquals(base.modPow(exponent, P), engine.modPow(base, exponent));
+    }
+
+    @Test
+    void otherModuli() {
+        // any odd modulus, limbs not filled to the top and composites included
+        for (int bits : new int[]{64, 65, 127, 160, 2048}) {
+            BigInteger modulus = new BigInteger(bits, random).setBit(bits - 1).setBit(0);
+            Montgomery engine = Montgomery.of(modulus);
+            for (int i = 0; i < 20; i++) {
+                BigInteger base = new BigInteger(bits + 8, random);
+                BigInteger exponent = new BigInteger(bits, random);
+                assertEquals(base.modPow(exponent, modulus), engine.modPow(base, exponent), bits + " bits");
+            }
+        }
+    }
+
+    @Test
+    void limbsMatchBigIntegers() {
+        Montgomery engine = Montgomery.of(P);
+        int n = engine.limbs();
+        for (int i = 0; i < 20; i++) {
+            BigInteger base = new BigInteger(1024, random).mod(P);
+            BigInteger exponent = new BigInteger(1024, random);
+            long[] result = new long[n];
+            engine.modPow(Montgomery.toLimbs(base, n), Montgomery.toLimbs(exponent, n), result);
+            assertArrayEquals(Montgomery.toLimbs(base.modPow(exponent, P), n), result);
+        }
+        // the result may be the base
+        long[] inPlace = Montgomery.toLimbs(BigInteger.TWO, n);
+        engine.modPow(inPlace, Montgomery.toLimbs(BigInteger.TEN, n), inPlace);
+        assertEquals(BigInteger.valueOf(1024), Montgomery.fromLimbs(inPlace));
+    }
+
+    @Test
+    void configuredEngineMatches() {
+        BigInteger base = new BigInteger(1024, random);
+        BigInteger exponent = new BigInteger(160, random);
+        assertEquals(base.modPow(exponent, P), Montgomery.modPow(base, exponent, P));
+    }
+
+    @Test
+    void evenModulusRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Montgomery.of(BigInteger.valueOf(1L << 40)));
+    }
+}